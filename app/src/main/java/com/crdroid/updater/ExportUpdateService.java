@@ -17,21 +17,28 @@ package com.crdroid.updater;
 
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.pm.ServiceInfo;
 import android.net.Uri;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.core.app.NotificationCompat;
 
+import com.crdroid.updater.controller.StorageAdmission;
 import com.crdroid.updater.misc.FileUtils;
+import com.crdroid.updater.misc.ResumableCopy;
+import com.crdroid.updater.misc.StringGenerator;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.text.NumberFormat;
 
@@ -42,6 +49,7 @@ public class ExportUpdateService extends Service {
     private static final int NOTIFICATION_ID = 16;
 
     public static final String ACTION_START_EXPORTING = "start_exporting";
+    public static final String ACTION_CANCEL_EXPORTING = "cancel_exporting";
 
     public static final String EXTRA_SOURCE_FILE = "source_file";
     public static final String EXTRA_DEST_URI = "dest_uri";
@@ -49,9 +57,13 @@ public class ExportUpdateService extends Service {
     private static final String EXPORT_NOTIFICATION_CHANNEL =
             "export_notification_channel";
 
+    // Progress of the interrupted export, if any
+    private static final String CHECKPOINT_FILE = "export.checkpoint";
+
     private volatile boolean mIsExporting = false;
 
     private Thread mExportThread;
+    private volatile ResumableCopy mCopy;
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -71,6 +83,11 @@ public class ExportUpdateService extends Service {
             Uri destination = intent.getParcelableExtra(EXTRA_DEST_URI);
             startExporting(source, destination);
             Toast.makeText(this, R.string.toast_export_started, Toast.LENGTH_SHORT).show();
+        } else if (ACTION_CANCEL_EXPORTING.equals(intent.getAction())) {
+            ResumableCopy copy = mCopy;
+            if (copy != null) {
+                copy.cancel();
+            }
         } else {
             Log.e(TAG, "No action specified");
         }
@@ -86,31 +103,63 @@ public class ExportUpdateService extends Service {
         private final ContentResolver mContentResolver;
         private final File mSource;
         private final Uri mDestination;
-        private final FileUtils.ProgressCallBack mProgressCallBack;
+        private final ResumableCopy.ProgressListener mProgressListener;
         private final Runnable mRunnableComplete;
+        private final Runnable mRunnableCancelled;
         private final Runnable mRunnableFailed;
 
         private ExportRunnable(ContentResolver cr, File source, Uri destination,
-                               FileUtils.ProgressCallBack progressCallBack,
-                               Runnable runnableComplete, Runnable runnableFailed) {
+                               ResumableCopy.ProgressListener progressListener,
+                               Runnable runnableComplete, Runnable runnableCancelled,
+                               Runnable runnableFailed) {
             mContentResolver = cr;
             mSource = source;
             mDestination = destination;
-            mProgressCallBack = progressCallBack;
+            mProgressListener = progressListener;
             mRunnableComplete = runnableComplete;
+            mRunnableCancelled = runnableCancelled;
             mRunnableFailed = runnableFailed;
         }
 
         @Override
         public void run() {
+            // Read access is needed to verify what was written
+            boolean readable = true;
+            ParcelFileDescriptor pfd;
+            try {
+                // Unlike "w", "rw" doesn't truncate, so that the export can be resumed
+                pfd = mContentResolver.openFileDescriptor(mDestination, "rw");
+            } catch (FileNotFoundException | IllegalArgumentException |
+                    UnsupportedOperationException e) {
+                Log.w(TAG, "Could not open " + mDestination + " for reading and writing", e);
+                readable = false;
+                pfd = null;
+            }
             try {
-                FileUtils.copyFile(mContentResolver, mSource, mDestination, mProgressCallBack);
+                if (pfd == null) {
+                    pfd = mContentResolver.openFileDescriptor(mDestination, "w");
+                    if (pfd == null) {
+                        throw new IOException("Could not open " + mDestination);
+                    }
+                }
+                boolean completed;
+                try (ParcelFileDescriptor destination = pfd) {
+                    StorageAdmission.checkCopy(mSource, destination.getFileDescriptor());
+                    mCopy = new ResumableCopy(mSource, destination.getFileDescriptor(),
+                            readable, mDestination.toString(),
+                            new File(getFilesDir(), CHECKPOINT_FILE), mProgressListener);
+                    completed = mCopy.run();
+                } finally {
+                    mCopy = null;
+                }
                 mIsExporting = false;
-                if (!mExportThread.isInterrupted()) {
+                if (completed) {
                     Log.d(TAG, "Completed");
+                    releaseUriPermission(mDestination);
                     mRunnableComplete.run();
                 } else {
-                    Log.d(TAG, "Aborted");
+                    Log.d(TAG, "Cancelled");
+                    mRunnableCancelled.run();
                 }
             } catch (IOException e) {
                 mIsExporting = false;
@@ -122,6 +171,32 @@ public class ExportUpdateService extends Service {
         }
     }
 
+    private void releaseUriPermission(Uri uri) {
+        try {
+            getContentResolver().releasePersistableUriPermission(uri,
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION |
+                            Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        } catch (SecurityException e) {
+            // Not persisted
+        }
+    }
+
+    private PendingIntent getCancelPendingIntent() {
+        final Intent intent = new Intent(this, ExportUpdateService.class);
+        intent.setAction(ACTION_CANCEL_EXPORTING);
+        return PendingIntent.getService(this, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private PendingIntent getResumePendingIntent(File source, Uri destination) {
+        final Intent intent = new Intent(this, ExportUpdateService.class);
+        intent.setAction(ACTION_START_EXPORTING);
+        intent.putExtra(EXTRA_SOURCE_FILE, source);
+        intent.putExtra(EXTRA_DEST_URI, destination);
+        return PendingIntent.getService(this, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
     private void startExporting(File source, Uri destination) {
         final String fileName = FileUtils.queryName(getContentResolver(), destination);
         NotificationManager notificationManager = getSystemService(NotificationManager.class);
@@ -140,15 +215,27 @@ public class ExportUpdateService extends Service {
         notificationBuilder.setStyle(notificationStyle);
         notificationBuilder.setSmallIcon(R.drawable.ic_system_update);
 
-        FileUtils.ProgressCallBack progressCallBack = new FileUtils.ProgressCallBack() {
+        notificationBuilder.addAction(android.R.drawable.ic_media_pause,
+                getString(R.string.action_cancel), getCancelPendingIntent());
+
+        ResumableCopy.ProgressListener progressListener = new ResumableCopy.ProgressListener() {
             private long mLastUpdate = -1;
 
             @Override
-            public void update(int progress) {
+            public void update(long bytesCopied, long total, long speed, long eta) {
                 long now = SystemClock.elapsedRealtime();
                 if (mLastUpdate < 0 || now - mLastUpdate > 500) {
+                    int progress = total > 0 ? Math.round(bytesCopied * 100.f / total) : 0;
                     String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
                     notificationStyle.setSummaryText(percent);
+                    if (speed >= 0) {
+                        String speedText = Formatter.formatFileSize(
+                                ExportUpdateService.this, speed);
+                        CharSequence etaText = StringGenerator.formatETA(
+                                ExportUpdateService.this, eta * 1000);
+                        notificationStyle.bigText(fileName + "\n" +
+                                getString(R.string.text_download_speed, etaText, speedText));
+                    }
                     notificationBuilder.setProgress(100, progress, false);
                     notificationManager.notify(NOTIFICATION_ID,
                             notificationBuilder.build());
@@ -167,6 +254,25 @@ public class ExportUpdateService extends Service {
                     getString(R.string.notification_export_success));
             notificationBuilder.setContentTitle(
                     getString(R.string.notification_export_success));
+            notificationStyle.bigText(fileName);
+            notificationBuilder.clearActions();
+            notificationBuilder.setProgress(0, 0, false);
+            notificationBuilder.setContentText(fileName);
+            notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
+            stopForeground(STOP_FOREGROUND_DETACH);
+        };
+
+        Runnable runnableCancelled = () -> {
+            notificationStyle.setSummaryText(null);
+            notificationStyle.setBigContentTitle(
+                    getString(R.string.notification_export_cancelled));
+            notificationStyle.bigText(fileName);
+            notificationBuilder.setContentTitle(
+                    getString(R.string.notification_export_cancelled));
+            notificationBuilder.clearActions();
+            notificationBuilder.addAction(android.R.drawable.ic_media_play,
+                    getString(R.string.resume_button),
+                    getResumePendingIntent(source, destination));
             notificationBuilder.setProgress(0, 0, false);
             notificationBuilder.setContentText(fileName);
             notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
@@ -179,6 +285,12 @@ public class ExportUpdateService extends Service {
                     getString(R.string.notification_export_fail));
             notificationBuilder.setContentTitle(
                     getString(R.string.notification_export_fail));
+            notificationStyle.bigText(fileName);
+            // What was written up to the failure is kept, retrying continues from there
+            notificationBuilder.clearActions();
+            notificationBuilder.addAction(android.R.drawable.ic_media_play,
+                    getString(R.string.resume_button),
+                    getResumePendingIntent(source, destination));
             notificationBuilder.setProgress(0, 0, false);
             notificationBuilder.setContentText(null);
             notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
@@ -186,7 +298,8 @@ public class ExportUpdateService extends Service {
         };
 
         ExportRunnable exportRunnable = new ExportRunnable(getContentResolver(), source,
-                destination, progressCallBack, runnableComplete, runnableFailed);
+                destination, progressListener, runnableComplete, runnableCancelled,
+                runnableFailed);
         mExportThread = new Thread(exportRunnable);
         mExportThread.start();
     }
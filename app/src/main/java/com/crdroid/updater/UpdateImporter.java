@@ -21,29 +21,32 @@ import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.util.Log;
 
 import org.json.JSONException;
+import com.crdroid.updater.controller.PackageVerifier;
 import com.crdroid.updater.controller.UpdaterController;
 import com.crdroid.updater.controller.UpdaterService;
+import com.crdroid.updater.misc.FileUtils;
 import com.crdroid.updater.misc.StringGenerator;
 import com.crdroid.updater.misc.Utils;
+import com.crdroid.updater.misc.ZipIndex;
 import com.crdroid.updater.model.Update;
 import com.crdroid.updater.model.UpdateInfo;
 import com.crdroid.updater.model.UpdateStatus;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
-import java.util.Enumeration;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class UpdateImporter {
     private static final int REQUEST_PICK = 9061;
@@ -91,9 +94,22 @@ public class UpdateImporter {
 
         workingThread = new Thread(() -> {
             File importedFile = null;
-            try {
-                importedFile = importFile(uri);
-                verifyPackage(importedFile);
+            try (ParcelFileDescriptor parcelDescriptor = activity.getContentResolver()
+                    .openFileDescriptor(uri, "r")) {
+                if (parcelDescriptor == null) {
+                    throw new IOException("Failed to obtain fileDescriptor");
+                }
+                // Verify it before copying it, so that a bad package isn't written at all
+                final boolean verifiedInPlace = verifyInPlace(parcelDescriptor,
+                        progress -> onProgress(progress * 2 / 5));
+
+                // The copy is verified in any case, the source may have changed since
+                final int copyStart = verifiedInPlace ? 40 : 0;
+                final int copyEnd = verifiedInPlace ? 60 : 50;
+                importedFile = importFile(parcelDescriptor, progress ->
+                        onProgress(copyStart + progress * (copyEnd - copyStart) / 100));
+                PackageVerifier.verify(importedFile, progress ->
+                        onProgress(copyEnd + progress * (100 - copyEnd) / 100));
 
                 final Update update = buildLocalUpdate(importedFile);
                 addUpdate(update);
@@ -114,37 +130,24 @@ public class UpdateImporter {
 
     @SuppressLint("SetWorldReadable")
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    private File importFile(Uri uri) throws IOException {
-        final ParcelFileDescriptor parcelDescriptor = activity.getContentResolver()
-                .openFileDescriptor(uri, "r");
-        if (parcelDescriptor == null) {
-            throw new IOException("Failed to obtain fileDescriptor");
-        }
-
-        final FileInputStream iStream = new FileInputStream(parcelDescriptor
-                .getFileDescriptor());
+    private File importFile(ParcelFileDescriptor parcelDescriptor,
+            FileUtils.ProgressCallBack progressCallBack) throws IOException {
         final File downloadDir = Utils.getDownloadPath(activity);
         final File outFile = new File(downloadDir, FILE_NAME);
         if (outFile.exists()) {
             outFile.delete();
         }
-        final FileOutputStream oStream = new FileOutputStream(outFile);
-
-        int read;
-        final byte[] buffer = new byte[4096];
-        while ((read = iStream.read(buffer)) > 0) {
-            oStream.write(buffer, 0, read);
-        }
-        oStream.flush();
-        oStream.close();
-        iStream.close();
-        parcelDescriptor.close();
+        FileUtils.copyFile(parcelDescriptor.getFileDescriptor(), outFile, progressCallBack);
 
         outFile.setReadable(true, false);
 
         return outFile;
     }
 
+    private void onProgress(int progress) {
+        activity.runOnUiThread(() -> callbacks.onImportProgress(progress));
+    }
+
     private Update buildLocalUpdate(File file) {
         final long timeStamp = getTimeStamp(file);
         final String buildDate = StringGenerator.getDateLocalizedUTC(
@@ -163,18 +166,31 @@ public class UpdateImporter {
         return update;
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void verifyPackage(File file) throws Exception {
+    /**
+     * Verify the picked package where it is, through the path of its descriptor
+     *
+     * @return whether it was verified, false if it can't be read in place
+     * @throws Exception if it's not valid
+     */
+    private boolean verifyInPlace(ParcelFileDescriptor parcelDescriptor,
+            PackageVerifier.ProgressListener listener) throws Exception {
         try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
-        } catch (Exception e) {
-            if (file.exists()) {
-                file.delete();
-                throw new Exception("Verification failed, file has been deleted");
-            } else {
-                throw e;
+            StructStat stat = Os.fstat(parcelDescriptor.getFileDescriptor());
+            if (!OsConstants.S_ISREG(stat.st_mode)) {
+                return false;
             }
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Could not get the type of the package", e);
+            return false;
+        }
+        // Opens the file of the descriptor again, with its own offset
+        final File source = new File("/proc/self/fd/" + parcelDescriptor.getFd());
+        if (!source.canRead()) {
+            Log.d(TAG, "The package can't be read in place, verifying it once copied");
+            return false;
         }
+        PackageVerifier.verify(source, listener);
+        return true;
     }
 
     private void addUpdate(Update update) {
@@ -205,45 +221,33 @@ public class UpdateImporter {
     }
 
     private String readZippedFile(File file, String path) throws IOException {
-        final StringBuilder sb = new StringBuilder();
-        InputStream iStream = null;
-
-        try (final ZipFile zip = new ZipFile(file)) {
-            final Enumeration<? extends ZipEntry> iterator = zip.entries();
-            while (iterator.hasMoreElements()) {
-                final ZipEntry entry = iterator.nextElement();
-                if (!METADATA_PATH.equals(entry.getName())) {
-                    continue;
-                }
-
-                iStream = zip.getInputStream(entry);
-                break;
-            }
-
-            if (iStream == null) {
-                throw new FileNotFoundException("Couldn't find " + path + " in " + file.getName());
-            }
+        final ZipIndex zipIndex = ZipIndex.get(file);
+        if (!zipIndex.hasEntry(path)) {
+            throw new FileNotFoundException("Couldn't find " + path + " in " + file.getName());
+        }
 
+        try (InputStream iStream = zipIndex.getInputStream(path);
+             ByteArrayOutputStream oStream = new ByteArrayOutputStream()) {
             final byte[] buffer = new byte[1024];
             int read;
             while ((read = iStream.read(buffer)) > 0) {
-                sb.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+                oStream.write(buffer, 0, read);
             }
+            return oStream.toString(StandardCharsets.UTF_8.name());
         } catch (IOException e) {
             Log.e(TAG, "Failed to read file from zip package", e);
             throw e;
-        } finally {
-            if (iStream != null) {
-                iStream.close();
-            }
         }
-
-        return sb.toString();
     }
 
     public interface Callbacks {
         void onImportStarted();
 
+        /**
+         * Called on the main thread with the progress of the import as percentage
+         */
+        void onImportProgress(int progress);
+
         void onImportCompleted(Update update);
     }
 }
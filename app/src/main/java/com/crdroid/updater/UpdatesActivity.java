@@ -69,12 +69,16 @@ import com.google.android.material.appbar.CollapsingToolbarLayout;
 import com.google.android.material.snackbar.Snackbar;
 
 import org.json.JSONException;
+import com.crdroid.updater.controller.ProgressChannel;
 import com.crdroid.updater.controller.UpdaterController;
 import com.crdroid.updater.controller.UpdaterService;
 import com.crdroid.updater.download.DownloadClient;
+import com.crdroid.updater.download.HttpValidators;
 import com.crdroid.updater.misc.BuildInfoUtils;
 import com.crdroid.updater.misc.Constants;
 import com.crdroid.updater.misc.StringGenerator;
+import com.crdroid.updater.misc.UpdateListDiff;
+import com.crdroid.updater.misc.UpdateListIndex;
 import com.crdroid.updater.misc.Utils;
 import com.crdroid.updater.model.Update;
 import com.crdroid.updater.model.UpdateInfo;
@@ -90,6 +94,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
     private static final String TAG = "UpdatesActivity";
     private UpdaterService mUpdaterService;
     private BroadcastReceiver mBroadcastReceiver;
+    private final ProgressChannel.Listener mProgressListener =
+            downloadId -> mAdapter.notifyItemChanged(downloadId);
 
     private UpdatesListAdapter mAdapter;
 
@@ -142,8 +148,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                     String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
                     handleDownloadStatusChange(downloadId);
                     mAdapter.notifyItemChanged(downloadId);
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction()) ||
-                        UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
+                } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
                     String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
                     mAdapter.notifyItemChanged(downloadId);
                 } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
@@ -231,10 +236,10 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
 
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
+        UpdaterController.getInstance(this).getProgressChannel().addListener(mProgressListener);
     }
 
     @Override
@@ -251,6 +256,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
     @Override
     public void onStop() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        UpdaterController.getInstance(this).getProgressChannel().removeListener(mProgressListener);
         if (mUpdaterService != null) {
             unbindService(mConnection);
         }
@@ -304,8 +310,21 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             importDialog.dismiss();
         }
 
-        importDialog = ProgressDialog.show(this, getString(R.string.local_update_import),
-                getString(R.string.local_update_import_progress), true, false);
+        importDialog = new ProgressDialog(this);
+        importDialog.setTitle(R.string.local_update_import);
+        importDialog.setMessage(getString(R.string.local_update_import_progress));
+        importDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        importDialog.setIndeterminate(true);
+        importDialog.setCancelable(false);
+        importDialog.show();
+    }
+
+    @Override
+    public void onImportProgress(int progress) {
+        if (importDialog != null) {
+            importDialog.setIndeterminate(false);
+            importDialog.setProgress(progress);
+        }
     }
 
     @Override
@@ -361,19 +380,10 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         }
     };
 
-    private void loadUpdatesList(File jsonFile, boolean manualRefresh)
-            throws IOException, JSONException {
+    private void loadUpdatesList(UpdateListDiff diff, boolean manualRefresh) {
         Log.d(TAG, "Adding remote updates");
         UpdaterController controller = mUpdaterService.getUpdaterController();
-        boolean newUpdates = false;
-
-        List<UpdateInfo> updates = Utils.parseJson(jsonFile, true);
-        List<String> updatesOnline = new ArrayList<>();
-        for (UpdateInfo update : updates) {
-            newUpdates |= controller.addUpdate(update);
-            updatesOnline.add(update.getDownloadId());
-        }
-        controller.setUpdatesAvailableOnline(updatesOnline, true);
+        boolean newUpdates = controller.setUpdatesAvailableOnline(diff, true);
 
         if (manualRefresh) {
             showSnackbar(
@@ -402,7 +412,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         File jsonFile = Utils.getCachedUpdateList(this);
         if (jsonFile.exists()) {
             try {
-                loadUpdatesList(jsonFile, false);
+                loadUpdatesList(UpdateListIndex.diff(null, Utils.parseJson(jsonFile, true)),
+                        false);
                 Log.d(TAG, "Cached list parsed");
             } catch (IOException | JSONException e) {
                 Log.e(TAG, "Error while parsing json list", e);
@@ -412,27 +423,45 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         }
     }
 
-    private void processNewJson(File json, File jsonNew, boolean manualRefresh) {
+    private void processNewJson(File json, File jsonNew, HttpValidators validators,
+            boolean manualRefresh) {
         try {
-            loadUpdatesList(jsonNew, manualRefresh);
+            UpdateListIndex previous = UpdateListIndex.load(json);
+            UpdateListDiff diff = UpdateListIndex.diff(previous,
+                    Utils.parseJson(jsonNew, true));
+            loadUpdatesList(diff, manualRefresh);
             SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
             long millis = System.currentTimeMillis();
             preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
             updateLastCheckedString();
-            if (json.exists() && Utils.isUpdateCheckEnabled(this) &&
-                    Utils.checkForNewUpdates(json, jsonNew)) {
+            if (previous != null && Utils.isUpdateCheckEnabled(this) &&
+                    diff.hasNewUpdates()) {
                 UpdatesCheckReceiver.updateRepeatingUpdatesCheck(this);
             }
             // In case we set a one-shot check because of a previous failure
             UpdatesCheckReceiver.cancelUpdatesCheck(this);
-            //noinspection ResultOfMethodCallIgnored
-            jsonNew.renameTo(json);
+            if (jsonNew.renameTo(json)) {
+                UpdateListIndex.create(json, diff.getUpdates());
+                HttpValidators.save(json, validators);
+            }
         } catch (IOException | JSONException e) {
             Log.e(TAG, "Could not read json", e);
             showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
         }
     }
 
+    private void processUnchangedJson(boolean manualRefresh) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        long millis = System.currentTimeMillis();
+        preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
+        updateLastCheckedString();
+        // In case we set a one-shot check because of a previous failure
+        UpdatesCheckReceiver.cancelUpdatesCheck(this);
+        if (manualRefresh) {
+            showSnackbar(R.string.snack_no_updates_found, Snackbar.LENGTH_SHORT);
+        }
+    }
+
     private void downloadUpdatesList(final boolean manualRefresh) {
         final File jsonFile = Utils.getCachedUpdateList(this);
         final File jsonFileTmp = new File(jsonFile.getAbsolutePath() + UUID.randomUUID());
@@ -440,6 +469,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         Log.d(TAG, "Checking " + url);
 
         DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+            private HttpValidators mValidators;
+
             @Override
             public void onFailure(final boolean cancelled) {
                 Log.e(TAG, "Could not download updates list");
@@ -453,13 +484,27 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
 
             @Override
             public void onResponse(DownloadClient.Headers headers) {
+                mValidators = HttpValidators.fromHeaders(headers);
+            }
+
+            @Override
+            public void onDigestMismatch() {
+            }
+
+            @Override
+            public void onNotModified() {
+                runOnUiThread(() -> {
+                    Log.d(TAG, "List not modified");
+                    processUnchangedJson(manualRefresh);
+                    refreshAnimationStop();
+                });
             }
 
             @Override
             public void onSuccess() {
                 runOnUiThread(() -> {
                     Log.d(TAG, "List downloaded");
-                    processNewJson(jsonFile, jsonFileTmp, manualRefresh);
+                    processNewJson(jsonFile, jsonFileTmp, mValidators, manualRefresh);
                     refreshAnimationStop();
                 });
             }
@@ -470,6 +515,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             downloadClient = new DownloadClient.Builder()
                     .setUrl(url)
                     .setDestination(jsonFileTmp)
+                    .setValidators(HttpValidators.load(jsonFile))
+                    .setKeepCompressed(true)
                     .setDownloadCallback(callback)
                     .build();
         } catch (IOException exception) {
@@ -684,6 +731,14 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
     }
 
     private void exportUpdate(Uri uri) {
+        try {
+            // Keep access to the document, to resume the export after a reboot
+            getContentResolver().takePersistableUriPermission(uri,
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION |
+                            Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Could not persist the permission for " + uri, e);
+        }
         Intent intent = new Intent(this, ExportUpdateService.class);
         intent.setAction(ExportUpdateService.ACTION_START_EXPORTING);
         intent.putExtra(ExportUpdateService.EXTRA_SOURCE_FILE, mToBeExported.getFile());
@@ -736,6 +791,9 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         SwitchCompat autoDelete = view.findViewById(R.id.preferences_auto_delete_updates);
         SwitchCompat meteredNetworkWarning = view.findViewById(
                 R.id.preferences_metered_network_warning);
+        Spinner speedLimitMetered = view.findViewById(R.id.preferences_speed_limit_metered);
+        Spinner speedLimitUnmetered = view.findViewById(R.id.preferences_speed_limit_unmetered);
+        Spinner speedLimitEthernet = view.findViewById(R.id.preferences_speed_limit_ethernet);
         SwitchCompat abPerfMode = view.findViewById(R.id.preferences_ab_perf_mode);
         SwitchCompat updateRecovery = view.findViewById(R.id.preferences_update_recovery);
 
@@ -748,6 +806,9 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         autoDelete.setChecked(prefs.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false));
         meteredNetworkWarning.setChecked(prefs.getBoolean(Constants.PREF_METERED_NETWORK_WARNING,
                 prefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true)));
+        speedLimitMetered.setSelection(prefs.getInt(Constants.PREF_SPEED_LIMIT_METERED, 0));
+        speedLimitUnmetered.setSelection(prefs.getInt(Constants.PREF_SPEED_LIMIT_UNMETERED, 0));
+        speedLimitEthernet.setSelection(prefs.getInt(Constants.PREF_SPEED_LIMIT_ETHERNET, 0));
         abPerfMode.setChecked(prefs.getBoolean(Constants.PREF_AB_PERF_MODE, false));
 
         if (getResources().getBoolean(R.bool.config_hideRecoveryUpdate)) {
@@ -788,6 +849,12 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                             .putBoolean(Constants.PREF_AUTO_DELETE_UPDATES, autoDelete.isChecked())
                             .putBoolean(Constants.PREF_METERED_NETWORK_WARNING,
                                     meteredNetworkWarning.isChecked())
+                            .putInt(Constants.PREF_SPEED_LIMIT_METERED,
+                                    speedLimitMetered.getSelectedItemPosition())
+                            .putInt(Constants.PREF_SPEED_LIMIT_UNMETERED,
+                                    speedLimitUnmetered.getSelectedItemPosition())
+                            .putInt(Constants.PREF_SPEED_LIMIT_ETHERNET,
+                                    speedLimitEthernet.getSelectedItemPosition())
                             .putBoolean(Constants.PREF_AB_PERF_MODE, abPerfMode.isChecked())
                             .apply();
 
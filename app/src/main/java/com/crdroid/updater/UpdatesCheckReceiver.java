@@ -31,7 +31,10 @@ import androidx.preference.PreferenceManager;
 
 import org.json.JSONException;
 import com.crdroid.updater.download.DownloadClient;
+import com.crdroid.updater.download.HttpValidators;
 import com.crdroid.updater.misc.Constants;
+import com.crdroid.updater.misc.UpdateListDiff;
+import com.crdroid.updater.misc.UpdateListIndex;
 import com.crdroid.updater.misc.Utils;
 
 import java.io.File;
@@ -77,6 +80,8 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
         final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
         String url = Utils.getServerURL(context);
         DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+            private HttpValidators mValidators;
+
             @Override
             public void onFailure(boolean cancelled) {
                 Log.e(TAG, "Could not download updates list, scheduling new check");
@@ -85,17 +90,38 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
 
             @Override
             public void onResponse(DownloadClient.Headers headers) {
+                mValidators = HttpValidators.fromHeaders(headers);
+            }
+
+            @Override
+            public void onDigestMismatch() {
+            }
+
+            @Override
+            public void onNotModified() {
+                Log.d(TAG, "Updates list not modified");
+                long currentMillis = System.currentTimeMillis();
+                preferences.edit()
+                        .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
+                        .apply();
+                // In case we set a one-shot check because of a previous failure
+                cancelUpdatesCheck(context);
             }
 
             @Override
             public void onSuccess() {
                 try {
-                    if (json.exists() && Utils.checkForNewUpdates(json, jsonNew)) {
+                    UpdateListIndex previous = UpdateListIndex.load(json);
+                    UpdateListDiff diff = UpdateListIndex.diff(previous,
+                            Utils.parseJson(jsonNew, true));
+                    if (previous != null && diff.hasNewUpdates()) {
                         showNotification(context);
                         updateRepeatingUpdatesCheck(context);
                     }
-                    //noinspection ResultOfMethodCallIgnored
-                    jsonNew.renameTo(json);
+                    if (jsonNew.renameTo(json)) {
+                        UpdateListIndex.create(json, diff.getUpdates());
+                        HttpValidators.save(json, mValidators);
+                    }
                     long currentMillis = System.currentTimeMillis();
                     preferences.edit()
                             .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
@@ -113,6 +139,8 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
             DownloadClient downloadClient = new DownloadClient.Builder()
                     .setUrl(url)
                     .setDestination(jsonNew)
+                    .setValidators(HttpValidators.load(json))
+                    .setKeepCompressed(true)
                     .setDownloadCallback(callback)
                     .build();
             downloadClient.start();
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 
 import com.crdroid.updater.model.Update;
@@ -30,7 +31,7 @@ import java.util.List;
 
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 3;
     public static final String DATABASE_NAME = "updates.db";
 
     public static class UpdateEntry implements BaseColumns {
@@ -44,6 +45,18 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_SIZE = "size";
     }
 
+    /**
+     * Files known to contain a valid package, with what identifies their content
+     */
+    public static class VerificationEntry implements BaseColumns {
+        public static final String TABLE_NAME = "verifications";
+        public static final String COLUMN_NAME_PATH = "path";
+        public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_MTIME = "mtime";
+        public static final String COLUMN_NAME_INODE = "inode";
+        public static final String COLUMN_NAME_DIGEST = "digest";
+    }
+
     private static final String SQL_CREATE_ENTRIES =
             "CREATE TABLE " + UpdateEntry.TABLE_NAME + " (" +
                     UpdateEntry._ID + " INTEGER PRIMARY KEY," +
@@ -55,31 +68,135 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
                     UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
 
+    private static final String SQL_CREATE_INDEX_TIMESTAMP =
+            "CREATE INDEX IF NOT EXISTS " + UpdateEntry.TABLE_NAME + "_timestamp ON " +
+                    UpdateEntry.TABLE_NAME + " (" + UpdateEntry.COLUMN_NAME_TIMESTAMP + ")";
+
+    private static final String SQL_CREATE_INDEX_STATUS =
+            "CREATE INDEX IF NOT EXISTS " + UpdateEntry.TABLE_NAME + "_status ON " +
+                    UpdateEntry.TABLE_NAME + " (" + UpdateEntry.COLUMN_NAME_STATUS + ")";
+
+    private static final String SQL_CREATE_VERIFICATIONS =
+            "CREATE TABLE IF NOT EXISTS " + VerificationEntry.TABLE_NAME + " (" +
+                    VerificationEntry._ID + " INTEGER PRIMARY KEY," +
+                    VerificationEntry.COLUMN_NAME_PATH + " TEXT NOT NULL UNIQUE," +
+                    VerificationEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_MTIME + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_INODE + " INTEGER," +
+                    VerificationEntry.COLUMN_NAME_DIGEST + " TEXT)";
+
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
 
+    private static final String SQL_DELETE_VERIFICATIONS =
+            "DROP TABLE IF EXISTS " + VerificationEntry.TABLE_NAME;
+
+    private static final String SQL_CHANGE_STATUS =
+            "UPDATE " + UpdateEntry.TABLE_NAME + " SET " + UpdateEntry.COLUMN_NAME_STATUS +
+                    " = ? WHERE " + UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+
+    private static final String SQL_REMOVE_UPDATE =
+            "DELETE FROM " + UpdateEntry.TABLE_NAME + " WHERE " +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+
+    private static final String[] VERIFICATION_PROJECTION = {
+            VerificationEntry.COLUMN_NAME_SIZE,
+            VerificationEntry.COLUMN_NAME_MTIME,
+            VerificationEntry.COLUMN_NAME_INODE,
+            VerificationEntry.COLUMN_NAME_DIGEST,
+    };
+
+    private static final String[] PROJECTION = {
+            UpdateEntry.COLUMN_NAME_PATH,
+            UpdateEntry.COLUMN_NAME_DOWNLOAD_ID,
+            UpdateEntry.COLUMN_NAME_TIMESTAMP,
+            UpdateEntry.COLUMN_NAME_TYPE,
+            UpdateEntry.COLUMN_NAME_VERSION,
+            UpdateEntry.COLUMN_NAME_STATUS,
+            UpdateEntry.COLUMN_NAME_SIZE,
+    };
+
+    // Compiled once and reused, access must be synchronized on the helper
+    private SQLiteStatement mChangeStatusStatement;
+    private SQLiteStatement mRemoveUpdateStatement;
+
     public UpdatesDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_INDEX_TIMESTAMP);
+        db.execSQL(SQL_CREATE_INDEX_STATUS);
+        db.execSQL(SQL_CREATE_VERIFICATIONS);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Each step migrates from the previous version, keeping the data
+        if (oldVersion < 2) {
+            db.execSQL(SQL_CREATE_INDEX_TIMESTAMP);
+            db.execSQL(SQL_CREATE_INDEX_STATUS);
+        }
+        if (oldVersion < 3) {
+            db.execSQL(SQL_CREATE_VERIFICATIONS);
+        }
+    }
+
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Newer schemas can't be migrated back, start over
         db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_VERIFICATIONS);
         onCreate(db);
     }
 
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+    @Override
+    public synchronized void close() {
+        if (mChangeStatusStatement != null) {
+            mChangeStatusStatement.close();
+            mChangeStatusStatement = null;
+        }
+        if (mRemoveUpdateStatement != null) {
+            mRemoveUpdateStatement.close();
+            mRemoveUpdateStatement = null;
+        }
+        super.close();
     }
 
     public void addUpdateWithOnConflict(Update update, int conflictAlgorithm) {
+        addUpdateWithOnConflict(getContentValues(update), conflictAlgorithm);
+    }
+
+    public void addUpdateWithOnConflict(ContentValues values, int conflictAlgorithm) {
         SQLiteDatabase db = getWritableDatabase();
+        db.insertWithOnConflict(UpdateEntry.TABLE_NAME, null, values, conflictAlgorithm);
+    }
+
+    /**
+     * Get a snapshot of the columns of the given update
+     */
+    public static ContentValues getContentValues(Update update) {
         ContentValues values = new ContentValues();
         fillContentValues(update, values);
-        db.insertWithOnConflict(UpdateEntry.TABLE_NAME, null, values, conflictAlgorithm);
+        return values;
+    }
+
+    /**
+     * Run the given writes in a single transaction
+     */
+    public void runInTransaction(Runnable writes) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            writes.run();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     private static void fillContentValues(Update update, ContentValues values) {
@@ -92,25 +209,27 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
     }
 
-    public void removeUpdate(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {downloadId};
-        db.delete(UpdateEntry.TABLE_NAME, selection, selectionArgs);
+    public synchronized void removeUpdate(String downloadId) {
+        if (mRemoveUpdateStatement == null) {
+            mRemoveUpdateStatement = getWritableDatabase().compileStatement(SQL_REMOVE_UPDATE);
+        }
+        mRemoveUpdateStatement.bindString(1, downloadId);
+        mRemoveUpdateStatement.executeUpdateDelete();
+        mRemoveUpdateStatement.clearBindings();
     }
 
     public void changeUpdateStatus(Update update) {
-        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {update.getDownloadId()};
-        changeUpdateStatus(selection, selectionArgs, update.getPersistentStatus());
+        changeUpdateStatus(update.getDownloadId(), update.getPersistentStatus());
     }
 
-    private void changeUpdateStatus(String selection, String[] selectionArgs,
-                                    int status) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(UpdateEntry.COLUMN_NAME_STATUS, status);
-        db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs);
+    public synchronized void changeUpdateStatus(String downloadId, int status) {
+        if (mChangeStatusStatement == null) {
+            mChangeStatusStatement = getWritableDatabase().compileStatement(SQL_CHANGE_STATUS);
+        }
+        mChangeStatusStatement.bindLong(1, status);
+        mChangeStatusStatement.bindString(2, downloadId);
+        mChangeStatusStatement.executeUpdateDelete();
+        mChangeStatusStatement.clearBindings();
     }
 
     public List<Update> getUpdates() {
@@ -119,41 +238,74 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
 
     public List<Update> getUpdates(String selection, String[] selectionArgs) {
         SQLiteDatabase db = getReadableDatabase();
-        String[] projection = {
-                UpdateEntry.COLUMN_NAME_PATH,
-                UpdateEntry.COLUMN_NAME_DOWNLOAD_ID,
-                UpdateEntry.COLUMN_NAME_TIMESTAMP,
-                UpdateEntry.COLUMN_NAME_TYPE,
-                UpdateEntry.COLUMN_NAME_VERSION,
-                UpdateEntry.COLUMN_NAME_STATUS,
-                UpdateEntry.COLUMN_NAME_SIZE,
-        };
         String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
-        Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, selectionArgs,
+        Cursor cursor = db.query(UpdateEntry.TABLE_NAME, PROJECTION, selection, selectionArgs,
                 null, null, sort);
         List<Update> updates = new ArrayList<>();
         if (cursor != null) {
+            final int pathIndex = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_PATH);
+            final int downloadIdIndex =
+                    cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_DOWNLOAD_ID);
+            final int timestampIndex =
+                    cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_TIMESTAMP);
+            final int typeIndex = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_TYPE);
+            final int versionIndex = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_VERSION);
+            final int statusIndex = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_STATUS);
+            final int sizeIndex = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_SIZE);
             while (cursor.moveToNext()) {
                 Update update = new Update();
-                int index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_PATH);
-                update.setFile(new File(cursor.getString(index)));
+                update.setFile(new File(cursor.getString(pathIndex)));
                 update.setName(update.getFile().getName());
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_DOWNLOAD_ID);
-                update.setDownloadId(cursor.getString(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_TIMESTAMP);
-                update.setTimestamp(cursor.getLong(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_TYPE);
-                update.setType(cursor.getString(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_VERSION);
-                update.setVersion(cursor.getString(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_STATUS);
-                update.setPersistentStatus(cursor.getInt(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SIZE);
-                update.setFileSize(cursor.getLong(index));
+                update.setDownloadId(cursor.getString(downloadIdIndex));
+                update.setTimestamp(cursor.getLong(timestampIndex));
+                update.setType(cursor.getString(typeIndex));
+                update.setVersion(cursor.getString(versionIndex));
+                update.setPersistentStatus(cursor.getInt(statusIndex));
+                update.setFileSize(cursor.getLong(sizeIndex));
                 updates.add(update);
             }
             cursor.close();
         }
         return updates;
     }
+
+    /**
+     * Record that the file at the given path was verified, replacing any previous
+     * record for the path
+     *
+     * @param values the columns of VerificationEntry
+     */
+    public void addVerification(ContentValues values) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.insertWithOnConflict(VerificationEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * @return the columns recorded when the file at the given path was verified,
+     *         or null if it wasn't
+     */
+    public ContentValues getVerification(String path) {
+        SQLiteDatabase db = getReadableDatabase();
+        String selection = VerificationEntry.COLUMN_NAME_PATH + " = ?";
+        try (Cursor cursor = db.query(VerificationEntry.TABLE_NAME, VERIFICATION_PROJECTION,
+                selection, new String[]{path}, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            ContentValues values = new ContentValues();
+            values.put(VerificationEntry.COLUMN_NAME_PATH, path);
+            values.put(VerificationEntry.COLUMN_NAME_SIZE, cursor.getLong(0));
+            values.put(VerificationEntry.COLUMN_NAME_MTIME, cursor.getLong(1));
+            values.put(VerificationEntry.COLUMN_NAME_INODE, cursor.getLong(2));
+            values.put(VerificationEntry.COLUMN_NAME_DIGEST, cursor.getString(3));
+            return values;
+        }
+    }
+
+    public void removeVerification(String path) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(VerificationEntry.TABLE_NAME, VerificationEntry.COLUMN_NAME_PATH + " = ?",
+                new String[]{path});
+    }
 }
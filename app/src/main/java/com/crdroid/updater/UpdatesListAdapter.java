@@ -53,6 +53,7 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.snackbar.Snackbar;
 
+import com.crdroid.updater.controller.StorageAdmission;
 import com.crdroid.updater.controller.UpdaterController;
 import com.crdroid.updater.controller.UpdaterService;
 import com.crdroid.updater.misc.BuildInfoUtils;
@@ -194,7 +195,11 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         } else if (mUpdaterController.isVerifyingUpdate(downloadId)) {
             setButtonAction(viewHolder.mAction, Action.INSTALL, downloadId, false);
             viewHolder.mProgressText.setText(R.string.list_verifying_update);
-            viewHolder.mProgressBar.setIndeterminate(true);
+            String percentage = NumberFormat.getPercentInstance().format(
+                    update.getProgress() / 100.f);
+            viewHolder.mPercentage.setText(percentage);
+            viewHolder.mProgressBar.setIndeterminate(false);
+            viewHolder.mProgressBar.setProgress(update.getProgress());
         } else {
             canDelete = true;
             setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, !isBusy());
@@ -323,7 +328,46 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         notifyItemRangeChanged(position, getItemCount());
     }
 
+    /**
+     * Run the given action if there's enough space for the operation, otherwise offer
+     * to delete stale updates to make room for it
+     */
+    private void runWithSpaceCheck(final String downloadId,
+            StorageAdmission.Operation operation, Runnable action) {
+        StorageAdmission admission = mUpdaterController.getStorageAdmission();
+        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+        StorageAdmission.Result result = admission.check(update, operation);
+        if (result.isAdmitted()) {
+            action.run();
+            return;
+        }
+
+        String missing = Formatter.formatShortFileSize(mActivity, result.getMissing());
+        AlertDialog.Builder dialog = new AlertDialog.Builder(mActivity)
+                .setTitle(R.string.dialog_not_enough_space_title);
+        if (result.canReclaim()) {
+            String reclaimable = Formatter.formatShortFileSize(mActivity,
+                    result.getReclaimable());
+            dialog.setMessage(mActivity.getString(R.string.dialog_not_enough_space_purge_message,
+                    missing, reclaimable))
+                    .setPositiveButton(R.string.action_free_up_space,
+                            (d, which) -> admission.purgeStaleUpdates(update,
+                                    result.getMissing(), action))
+                    .setNegativeButton(android.R.string.cancel, null);
+        } else {
+            dialog.setMessage(mActivity.getString(R.string.dialog_not_enough_space_message,
+                    missing))
+                    .setPositiveButton(android.R.string.ok, null);
+        }
+        dialog.show();
+    }
+
     private void startDownloadWithWarning(final String downloadId) {
+        runWithSpaceCheck(downloadId, StorageAdmission.Operation.DOWNLOAD,
+                () -> startDownloadWithMeteredWarning(downloadId));
+    }
+
+    private void startDownloadWithMeteredWarning(final String downloadId) {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mActivity);
         boolean warn = preferences.getBoolean(Constants.PREF_METERED_NETWORK_WARNING, true);
         if (!(Utils.isNetworkMetered(mActivity) && warn)) {
@@ -376,7 +420,8 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                         update.getFile().length() == update.getFileSize();
                 clickListener = enabled ? view -> {
                     if (canInstall) {
-                        mUpdaterController.resumeDownload(downloadId);
+                        runWithSpaceCheck(downloadId, StorageAdmission.Operation.DOWNLOAD,
+                                () -> mUpdaterController.resumeDownload(downloadId));
                     } else {
                         mActivity.showSnackbar(R.string.snack_update_not_installable,
                                 Snackbar.LENGTH_LONG);
@@ -497,10 +542,11 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 .setMessage(mActivity.getString(resId, buildInfoText,
                         mActivity.getString(android.R.string.ok)))
                 .setPositiveButton(android.R.string.ok,
-                        (dialog, which) -> {
-                            Utils.triggerUpdate(mActivity, downloadId);
-                            maybeShowInfoDialog();
-                        })
+                        (dialog, which) -> runWithSpaceCheck(downloadId,
+                                StorageAdmission.Operation.STAGING, () -> {
+                                    Utils.triggerUpdate(mActivity, downloadId);
+                                    maybeShowInfoDialog();
+                                }))
                 .setNegativeButton(android.R.string.cancel, null);
     }
 
@@ -25,7 +25,7 @@ import android.util.Log;
 import androidx.preference.PreferenceManager;
 
 import com.crdroid.updater.misc.Constants;
-import com.crdroid.updater.misc.Utils;
+import com.crdroid.updater.misc.ZipIndex;
 import com.crdroid.updater.model.Update;
 import com.crdroid.updater.model.UpdateStatus;
 
@@ -36,8 +36,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 class ABUpdateInstaller {
 
@@ -174,10 +172,9 @@ class ABUpdateInstaller {
         long offset;
         String[] headerKeyValuePairs;
         try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
+            ZipIndex zipIndex = ZipIndex.get(file);
+            offset = zipIndex.getDataOffset(Constants.AB_PAYLOAD_BIN_PATH);
+            try (InputStream is = zipIndex.getInputStream(Constants.AB_PAYLOAD_PROPERTIES_PATH);
                  InputStreamReader isr = new InputStreamReader(is);
                  BufferedReader br = new BufferedReader(isr)) {
                 List<String> lines = new ArrayList<>();
@@ -187,7 +184,6 @@ class ABUpdateInstaller {
                 headerKeyValuePairs = new String[lines.size()];
                 headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
             }
-            zipFile.close();
         } catch (IOException | IllegalArgumentException e) {
             Log.e(TAG, "Could not prepare " + file, e);
             mUpdaterController.getActualUpdate(mDownloadId)
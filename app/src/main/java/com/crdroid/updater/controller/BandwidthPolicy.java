@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.controller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import com.crdroid.updater.R;
+import com.crdroid.updater.download.RateLimiter;
+import com.crdroid.updater.misc.Constants;
+
+/**
+ * Sets the speed limit of the downloads according to the type of the default
+ * network, and updates it when the network or the preferences change, including
+ * in the middle of a download.
+ */
+class BandwidthPolicy extends ConnectivityManager.NetworkCallback
+        implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static final String TAG = "BandwidthPolicy";
+
+    private final Context mContext;
+    private final RateLimiter mRateLimiter;
+    private final SharedPreferences mPrefs;
+    private final int[] mLimits;
+
+    // Preference of the limit of the current network, null if there's none
+    private volatile String mLimitKey;
+
+    BandwidthPolicy(Context context, RateLimiter rateLimiter) {
+        mContext = context.getApplicationContext();
+        mRateLimiter = rateLimiter;
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mLimits = mContext.getResources().getIntArray(R.array.menu_speed_limit_values);
+    }
+
+    void start() {
+        mPrefs.registerOnSharedPreferenceChangeListener(this);
+        ConnectivityManager cm = mContext.getSystemService(ConnectivityManager.class);
+        cm.registerDefaultNetworkCallback(this);
+    }
+
+    @Override
+    public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+        String limitKey;
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            limitKey = Constants.PREF_SPEED_LIMIT_ETHERNET;
+        } else if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED) ||
+                capabilities.hasCapability(
+                        NetworkCapabilities.NET_CAPABILITY_TEMPORARILY_NOT_METERED)) {
+            limitKey = Constants.PREF_SPEED_LIMIT_UNMETERED;
+        } else {
+            limitKey = Constants.PREF_SPEED_LIMIT_METERED;
+        }
+        if (!limitKey.equals(mLimitKey)) {
+            mLimitKey = limitKey;
+            update();
+        }
+    }
+
+    @Override
+    public void onLost(Network network) {
+        // Downloads are failing anyway, keep the limit of the next network
+        mLimitKey = null;
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+        if (key != null && key.equals(mLimitKey)) {
+            update();
+        }
+    }
+
+    private void update() {
+        String limitKey = mLimitKey;
+        if (limitKey == null) {
+            return;
+        }
+        int index = mPrefs.getInt(limitKey, 0);
+        long rate = index >= 0 && index < mLimits.length ? mLimits[index] * 1024L : 0;
+        if (rate != mRateLimiter.getRate()) {
+            Log.d(TAG, (rate > 0 ? "Limiting downloads to " + rate + " B/s" :
+                    "Not limiting downloads") + " (" + limitKey + ")");
+            mRateLimiter.setRate(rate);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.controller;
+
+import android.os.RecoverySystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Verifies update packages with RecoverySystem, reporting the progress of the
+ * verification.
+ */
+public class PackageVerifier {
+
+    public interface ProgressListener {
+        /**
+         * Called from the verifying thread with the progress as percentage
+         */
+        void onProgress(int progress);
+    }
+
+    private PackageVerifier() {
+    }
+
+    /**
+     * Verify the given package
+     *
+     * @param listener notified of the progress, can be null
+     */
+    public static void verify(File file, ProgressListener listener)
+            throws IOException, GeneralSecurityException {
+        RecoverySystem.verifyPackage(file,
+                listener != null ? listener::onProgress : null, null);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.controller;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers progress changes to listeners on the main thread. Publishing only marks
+ * the download as changed, listeners are then told at most once per interval to
+ * read its latest progress, however many changes happened in between.
+ */
+public class ProgressChannel {
+
+    public interface Listener {
+        /**
+         * Called on the main thread when the progress of the given download changed
+         */
+        void onProgress(String downloadId);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Set<String> mChanged = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final Runnable mDispatch = this::dispatch;
+
+    private volatile long mMinIntervalMs;
+    private volatile long mLastDispatch;
+
+    ProgressChannel(long minIntervalMs) {
+        mMinIntervalMs = minIntervalMs;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Set the minimum time between two deliveries to the listeners
+     */
+    public void setMinInterval(long minIntervalMs) {
+        mMinIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * Mark the progress of the given download as changed. Can be called from any thread.
+     */
+    void publish(String downloadId) {
+        mChanged.add(downloadId);
+        if (mScheduled.compareAndSet(false, true)) {
+            long delay = mLastDispatch + mMinIntervalMs - SystemClock.elapsedRealtime();
+            mHandler.postDelayed(mDispatch, Math.max(0, delay));
+        }
+    }
+
+    private void dispatch() {
+        // Reset first, so that changes published from now on schedule a new dispatch
+        mScheduled.set(false);
+        mLastDispatch = SystemClock.elapsedRealtime();
+        Iterator<String> iterator = mChanged.iterator();
+        while (iterator.hasNext()) {
+            String downloadId = iterator.next();
+            iterator.remove();
+            for (Listener listener : mListeners) {
+                listener.onProgress(downloadId);
+            }
+        }
+    }
+}
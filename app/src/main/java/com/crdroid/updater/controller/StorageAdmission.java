@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.controller;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStatVfs;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import com.crdroid.updater.misc.Constants;
+import com.crdroid.updater.misc.Utils;
+import com.crdroid.updater.model.Update;
+import com.crdroid.updater.model.UpdateInfo;
+import com.crdroid.updater.model.UpdateStatus;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides whether there's enough free space for an operation on an update before
+ * any of its data is written, and finds the stale updates that can be deleted to
+ * make room for it.
+ */
+public class StorageAdmission {
+
+    private static final String TAG = "StorageAdmission";
+
+    // Left free in addition to what an operation needs
+    private static final long RESERVED_BYTES = 64 * 1024 * 1024;
+
+    public enum Operation {
+        /** Download the update, and later stage it for installation if needed */
+        DOWNLOAD,
+        /** Create the copy of the update passed to uncrypt */
+        STAGING,
+    }
+
+    public static class Result {
+        private final long mRequired;
+        private final long mAvailable;
+        private final long mReclaimable;
+
+        private Result(long required, long available, long reclaimable) {
+            mRequired = required;
+            mAvailable = available;
+            mReclaimable = reclaimable;
+        }
+
+        public boolean isAdmitted() {
+            return mRequired <= mAvailable;
+        }
+
+        /**
+         * @return whether deleting the stale updates would free enough space
+         */
+        public boolean canReclaim() {
+            return mRequired <= mAvailable + mReclaimable;
+        }
+
+        /**
+         * @return the bytes that need to be freed for the operation to be admitted
+         */
+        public long getMissing() {
+            return Math.max(0, mRequired - mAvailable);
+        }
+
+        public long getReclaimable() {
+            return mReclaimable;
+        }
+
+        @Override
+        public String toString() {
+            return mRequired + " bytes required, " + mAvailable + " available, " +
+                    mReclaimable + " reclaimable";
+        }
+    }
+
+    private final Context mContext;
+    private final UpdaterController mUpdaterController;
+    private final File mDownloadRoot;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    StorageAdmission(Context context, UpdaterController controller, File downloadRoot) {
+        mContext = context.getApplicationContext();
+        mUpdaterController = controller;
+        mDownloadRoot = downloadRoot;
+    }
+
+    /**
+     * Get the space that the given operation will take in the download directory
+     *
+     * @return the number of bytes, 0 if the operation doesn't need any
+     */
+    public long getRequiredBytes(UpdateInfo update, Operation operation) {
+        long required = getStagingBytes(update);
+        if (operation == Operation.DOWNLOAD) {
+            long downloaded = 0;
+            File file = update.getFile();
+            if (update.getPersistentStatus() == UpdateStatus.Persistent.INCOMPLETE &&
+                    file != null && file.exists()) {
+                // Preallocated downloads already take all their space
+                downloaded = file.length();
+            }
+            required += Math.max(0, update.getFileSize() - downloaded);
+        }
+        return required > 0 ? required + RESERVED_BYTES : 0;
+    }
+
+    /**
+     * Check whether there's enough free space in the download directory for the
+     * given operation. Nothing is written.
+     */
+    public Result check(UpdateInfo update, Operation operation) {
+        long required = getRequiredBytes(update, operation);
+        if (required == 0) {
+            return new Result(0, 0, 0);
+        }
+        long reclaimable = 0;
+        for (UpdateInfo stale : getStaleUpdates(update)) {
+            reclaimable += stale.getFile().length();
+        }
+        return new Result(required, mDownloadRoot.getUsableSpace(), reclaimable);
+    }
+
+    /**
+     * Check whether the file system of the given file has room for a copy of source
+     *
+     * @throws IOException if it doesn't
+     */
+    public static void checkCopy(File source, FileDescriptor destination) throws IOException {
+        StructStatVfs stat;
+        try {
+            stat = Os.fstatvfs(destination);
+        } catch (ErrnoException e) {
+            // Not every provider is backed by a file system, let the copy find out
+            Log.w(TAG, "Could not get the free space of the destination", e);
+            return;
+        }
+        long available = stat.f_bavail * stat.f_frsize;
+        if (available < source.length()) {
+            throw new IOException("Not enough space to copy " + source + ": " +
+                    source.length() + " bytes required, " + available + " available");
+        }
+    }
+
+    /**
+     * Delete the stale updates, oldest first, until the given amount of bytes is freed.
+     * The files are deleted in the background.
+     *
+     * @param onPurged run on the main thread once the files are deleted
+     */
+    public void purgeStaleUpdates(UpdateInfo update, long bytes, Runnable onPurged) {
+        long freed = 0;
+        for (UpdateInfo stale : getStaleUpdates(update)) {
+            if (freed >= bytes) {
+                break;
+            }
+            Log.d(TAG, "Deleting " + stale.getDownloadId() + " to free space");
+            freed += stale.getFile().length();
+            mUpdaterController.deleteUpdate(stale.getDownloadId());
+        }
+        mUpdaterController.runAfterPendingWrites(() -> mMainHandler.post(onPurged));
+    }
+
+    private long getStagingBytes(UpdateInfo update) {
+        if (Utils.isABDevice()) {
+            // update_engine reads the package in place
+            return 0;
+        }
+        if (!Utils.isEncrypted(mContext, mDownloadRoot)) {
+            return 0;
+        }
+        boolean consume = PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false);
+        // The package is moved rather than copied if it's deleted after the installation
+        return consume ? 0 : update.getFileSize();
+    }
+
+    /**
+     * Get the downloaded updates, other than the given one, that can be deleted:
+     * the ones no longer online, older than the given one or than the installed build
+     *
+     * @return the updates sorted by timestamp
+     */
+    private List<UpdateInfo> getStaleUpdates(UpdateInfo update) {
+        List<UpdateInfo> stale = new ArrayList<>();
+        for (UpdateInfo candidate : mUpdaterController.getUpdates()) {
+            String downloadId = candidate.getDownloadId();
+            if (downloadId.equals(update.getDownloadId()) ||
+                    Update.LOCAL_ID.equals(downloadId) ||
+                    candidate.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN ||
+                    candidate.getFile() == null || !candidate.getFile().exists() ||
+                    mUpdaterController.isDownloading(downloadId) ||
+                    mUpdaterController.isVerifyingUpdate(downloadId) ||
+                    mUpdaterController.isInstallingUpdate(downloadId) ||
+                    mUpdaterController.isWaitingForReboot(downloadId)) {
+                continue;
+            }
+            if (!candidate.getAvailableOnline() ||
+                    candidate.getTimestamp() < update.getTimestamp() ||
+                    !Utils.isCompatible(candidate.getTimestamp())) {
+                stale.add(candidate);
+            }
+        }
+        stale.sort((u1, u2) -> Long.compare(u1.getTimestamp(), u2.getTimestamp()));
+        return stale;
+    }
+}
@@ -19,6 +19,9 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.SystemClock;
 import android.os.SystemProperties;
+import android.system.ErrnoException;
+import android.system.Int64Ref;
+import android.system.Os;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
@@ -30,6 +33,8 @@ import com.crdroid.updater.model.UpdateInfo;
 import com.crdroid.updater.model.UpdateStatus;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.Files;
@@ -40,6 +45,17 @@ class UpdateInstaller {
 
     private static final String TAG = "UpdateInstaller";
 
+    private static final long SENDFILE_CHUNK_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * Ways of creating the file passed to uncrypt, from the cheapest to the most expensive
+     */
+    enum StagingMethod {
+        MOVE,
+        SENDFILE,
+        COPY,
+    }
+
     private static UpdateInstaller sInstance = null;
     private static String sInstallingUpdate = null;
 
@@ -77,6 +93,12 @@ class UpdateInstaller {
         }
 
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+        if (!mUpdaterController.isSpaceAvailable(update, StorageAdmission.Operation.STAGING)) {
+            mUpdaterController.getActualUpdate(downloadId)
+                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
+            mUpdaterController.notifyUpdateChange(downloadId);
+            return;
+        }
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
         long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
         long lastBuildTimestamp = preferences.getLong(Constants.PREF_INSTALL_OLD_TIMESTAMP,
@@ -92,25 +114,99 @@ class UpdateInstaller {
 
         if (Utils.isEncrypted(mContext, update.getFile())) {
             // uncrypt rewrites the file so that it can be read without mounting
-            // the filesystem, so create a copy of it.
+            // the filesystem, so stage it under a different name.
             prepareForUncryptAndInstall(update);
         } else {
             installPackage(update.getFile(), downloadId);
         }
     }
 
-    private void installPackage(File update, String downloadId) {
+    private boolean installPackage(File update, String downloadId) {
         try {
             android.os.RecoverySystem.installPackage(mContext, update);
+            return true;
         } catch (IOException e) {
             Log.e(TAG, "Could not install update", e);
             mUpdaterController.getActualUpdate(downloadId)
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
             mUpdaterController.notifyUpdateChange(downloadId);
+            return false;
+        }
+    }
+
+    /**
+     * Create the file passed to uncrypt. uncrypt writes the decrypted data over the
+     * blocks of the file, so the package can only be moved when it's going to be
+     * deleted after the installation anyway. Otherwise it's copied, with sendfile to
+     * avoid moving the data through user space if possible.
+     *
+     * @param consume whether the original package can be moved
+     * @return the method used
+     */
+    private static StagingMethod stageUpdate(File source, File dest, boolean consume,
+            FileUtils.ProgressCallBack progressCallBack) throws IOException {
+        if (dest.exists() && !dest.delete()) {
+            throw new IOException("Could not delete " + dest);
+        }
+
+        if (consume) {
+            try {
+                Os.rename(source.getAbsolutePath(), dest.getAbsolutePath());
+                return StagingMethod.MOVE;
+            } catch (ErrnoException e) {
+                Log.d(TAG, "Could not move " + source, e);
+            }
+        }
+
+        try {
+            sendFile(source, dest, progressCallBack);
+            return StagingMethod.SENDFILE;
+        } catch (ErrnoException e) {
+            Log.d(TAG, "Could not copy " + source + " with sendfile", e);
+            //noinspection ResultOfMethodCallIgnored
+            dest.delete();
+        }
+
+        FileUtils.copyFile(source, dest, progressCallBack);
+        return StagingMethod.COPY;
+    }
+
+    /**
+     * Undo stageUpdate(), making sure the original package is left in place
+     */
+    private static void unstageUpdate(File source, File dest, StagingMethod method) {
+        if (method == StagingMethod.MOVE) {
+            if (!dest.renameTo(source)) {
+                Log.e(TAG, "Could not move " + dest + " back to " + source);
+            }
+        } else {
+            //noinspection ResultOfMethodCallIgnored
+            dest.delete();
+        }
+    }
+
+    private static void sendFile(File source, File dest,
+            FileUtils.ProgressCallBack progressCallBack) throws IOException, ErrnoException {
+        try (FileInputStream in = new FileInputStream(source);
+             FileOutputStream out = new FileOutputStream(dest)) {
+            final long size = in.getChannel().size();
+            Int64Ref offset = new Int64Ref(0);
+            while (offset.value < size && !Thread.currentThread().isInterrupted()) {
+                long sent = Os.sendfile(out.getFD(), in.getFD(), offset,
+                        Math.min(SENDFILE_CHUNK_SIZE, size - offset.value));
+                if (sent <= 0) {
+                    throw new IOException("Unexpected end of " + source);
+                }
+                if (progressCallBack != null) {
+                    progressCallBack.update(Math.round(offset.value * 100f / size));
+                }
+            }
         }
     }
 
     private synchronized void prepareForUncryptAndInstall(UpdateInfo update) {
+        final boolean consume = PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false);
         String uncryptFilePath = update.getFile().getAbsolutePath() + Constants.UNCRYPT_FILE_EXT;
         File uncryptFile = new File(uncryptFilePath);
 
@@ -132,9 +228,13 @@ class UpdateInstaller {
 
             @Override
             public void run() {
+                // Set once staged, only then can the package have been moved
+                StagingMethod method = null;
                 try {
                     mCanCancel = true;
-                    FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack);
+                    method = stageUpdate(update.getFile(), uncryptFile, consume,
+                            mProgressCallBack);
+                    Log.i(TAG, "Staged " + uncryptFile.getName() + " using " + method);
                     try {
                         Set<PosixFilePermission> perms = new HashSet<>();
                         perms.add(PosixFilePermission.OWNER_READ);
@@ -150,15 +250,18 @@ class UpdateInstaller {
                                 .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
                         mUpdaterController.getActualUpdate(update.getDownloadId())
                                 .setInstallProgress(0);
-                        //noinspection ResultOfMethodCallIgnored
-                        uncryptFile.delete();
-                    } else {
-                        installPackage(uncryptFile, update.getDownloadId());
+                        unstageUpdate(update.getFile(), uncryptFile, method);
+                    } else if (!installPackage(uncryptFile, update.getDownloadId())) {
+                        unstageUpdate(update.getFile(), uncryptFile, method);
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "Could not copy update", e);
-                    //noinspection ResultOfMethodCallIgnored
-                    uncryptFile.delete();
+                    if (method != null) {
+                        unstageUpdate(update.getFile(), uncryptFile, method);
+                    } else {
+                        //noinspection ResultOfMethodCallIgnored
+                        uncryptFile.delete();
+                    }
                     mUpdaterController.getActualUpdate(update.getDownloadId())
                             .setStatus(UpdateStatus.INSTALLATION_FAILED);
                 } finally {
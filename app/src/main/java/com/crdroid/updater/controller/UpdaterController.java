@@ -18,7 +18,6 @@ package com.crdroid.updater.controller;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
-import android.database.sqlite.SQLiteDatabase;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
@@ -27,6 +26,10 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.crdroid.updater.UpdatesDbHelper;
 import com.crdroid.updater.download.DownloadClient;
+import com.crdroid.updater.download.DownloadJournal;
+import com.crdroid.updater.download.MirrorSelector;
+import com.crdroid.updater.download.RateLimiter;
+import com.crdroid.updater.misc.UpdateListDiff;
 import com.crdroid.updater.misc.Utils;
 import com.crdroid.updater.model.Update;
 import com.crdroid.updater.model.UpdateInfo;
@@ -35,15 +38,16 @@ import com.crdroid.updater.model.UpdateStatus;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
 public class UpdaterController {
 
-    public static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
     public static final String ACTION_INSTALL_PROGRESS = "action_install_progress";
     public static final String ACTION_UPDATE_REMOVED = "action_update_removed";
     public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
@@ -55,16 +59,35 @@ public class UpdaterController {
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
 
+    // Minimum time between two deliveries of the download progress to the listeners
+    private static final long PROGRESS_DISPATCH_INTERVAL_MS = 500;
+
+    // Number of ranges of the package downloaded in parallel
+    private static final int DOWNLOAD_SEGMENTS = 4;
+
+    // Scores of the download mirrors, kept across sessions
+    private static final String MIRROR_SCORES_FILE = "mirror_scores";
+
+    private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-fA-F]{32}");
+
     private final Context mContext;
     private final LocalBroadcastManager mBroadcastManager;
     private final UpdatesDbHelper mUpdatesDbHelper;
+    private final UpdatesDbQueue mUpdatesDbQueue;
+    private final ProgressChannel mProgressChannel =
+            new ProgressChannel(PROGRESS_DISPATCH_INTERVAL_MS);
 
     private final PowerManager.WakeLock mWakeLock;
 
     private final File mDownloadRoot;
+    private final StorageAdmission mStorageAdmission;
+    private final VerificationCache mVerificationCache;
+    private final MirrorSelector mMirrorSelector;
+    private final RateLimiter mRateLimiter = new RateLimiter();
+    private final BandwidthPolicy mBandwidthPolicy;
 
-    private int mActiveDownloads = 0;
-    private final Set<String> mVerifyingUpdates = new HashSet<>();
+    private final AtomicInteger mActiveDownloads = new AtomicInteger();
+    private final Set<String> mVerifyingUpdates = ConcurrentHashMap.newKeySet();
 
     public static synchronized UpdaterController getInstance(Context context) {
         if (sUpdaterController == null) {
@@ -76,7 +99,13 @@ public class UpdaterController {
     private UpdaterController(Context context) {
         mBroadcastManager = LocalBroadcastManager.getInstance(context);
         mUpdatesDbHelper = new UpdatesDbHelper(context);
+        mUpdatesDbQueue = new UpdatesDbQueue(mUpdatesDbHelper);
         mDownloadRoot = Utils.getDownloadPath(context);
+        mStorageAdmission = new StorageAdmission(context, this, mDownloadRoot);
+        mVerificationCache = new VerificationCache(mUpdatesDbHelper, mUpdatesDbQueue);
+        mMirrorSelector = new MirrorSelector(new File(context.getFilesDir(), MIRROR_SCORES_FILE));
+        mBandwidthPolicy = new BandwidthPolicy(context, mRateLimiter);
+        mBandwidthPolicy.start();
         PowerManager powerManager = context.getSystemService(PowerManager.class);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater:wakelock");
         mWakeLock.setReferenceCounted(false);
@@ -91,13 +120,16 @@ public class UpdaterController {
 
     private static class DownloadEntry {
         final Update mUpdate;
-        DownloadClient mDownloadClient;
+        // Set while downloading, only the thread that clears it handles the end
+        // of the download
+        final AtomicReference<DownloadClient> mDownloadClient = new AtomicReference<>();
         private DownloadEntry(Update update) {
             mUpdate = update;
         }
     }
 
-    private final Map<String, DownloadEntry> mDownloads = new HashMap<>();
+    // Accessed by the UI, the service and the download and verification threads
+    private final Map<String, DownloadEntry> mDownloads = new ConcurrentHashMap<>();
 
     void notifyUpdateChange(String downloadId) {
         Intent intent = new Intent();
@@ -114,10 +146,29 @@ public class UpdaterController {
     }
 
     void notifyDownloadProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_DOWNLOAD_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mProgressChannel.publish(downloadId);
+    }
+
+    /**
+     * Get the channel delivering the download progress. Listeners are called on the
+     * main thread and read the latest progress from getUpdate().
+     */
+    public ProgressChannel getProgressChannel() {
+        return mProgressChannel;
+    }
+
+    public StorageAdmission getStorageAdmission() {
+        return mStorageAdmission;
+    }
+
+    boolean isSpaceAvailable(UpdateInfo update, StorageAdmission.Operation operation) {
+        StorageAdmission.Result result = mStorageAdmission.check(update, operation);
+        if (!result.isAdmitted()) {
+            Log.e(TAG, "Not enough space for " + operation + " of " + update.getDownloadId() +
+                    ": " + result);
+            return false;
+        }
+        return true;
     }
 
     void notifyInstallProgress(String downloadId) {
@@ -133,20 +184,26 @@ public class UpdaterController {
         }
     }
 
-    private void addDownloadClient(DownloadEntry entry, DownloadClient downloadClient) {
-        if (entry.mDownloadClient != null) {
-            return;
+    /**
+     * @return false if the entry already has a download client
+     */
+    private boolean addDownloadClient(DownloadEntry entry, DownloadClient downloadClient) {
+        if (!entry.mDownloadClient.compareAndSet(null, downloadClient)) {
+            return false;
         }
-        entry.mDownloadClient = downloadClient;
-        mActiveDownloads++;
+        mActiveDownloads.incrementAndGet();
+        return true;
     }
 
-    private void removeDownloadClient(DownloadEntry entry) {
-        if (entry.mDownloadClient == null) {
-            return;
+    /**
+     * @return the removed client, or null if another thread removed it already
+     */
+    private DownloadClient removeDownloadClient(DownloadEntry entry) {
+        DownloadClient downloadClient = entry.mDownloadClient.getAndSet(null);
+        if (downloadClient != null) {
+            mActiveDownloads.decrementAndGet();
         }
-        entry.mDownloadClient = null;
-        mActiveDownloads--;
+        return downloadClient;
     }
 
     private DownloadClient.DownloadCallback getDownloadCallback(final String downloadId) {
@@ -172,8 +229,7 @@ public class UpdaterController {
                 }
                 update.setStatus(UpdateStatus.DOWNLOADING);
                 update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
-                new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
-                        SQLiteDatabase.CONFLICT_REPLACE)).start();
+                mUpdatesDbQueue.addUpdate(update);
                 notifyUpdateChange(downloadId);
             }
 
@@ -181,11 +237,11 @@ public class UpdaterController {
             public void onSuccess() {
                 Log.d(TAG, "Download complete");
                 DownloadEntry entry = mDownloads.get(downloadId);
-                if (entry != null) {
+                if (entry != null && removeDownloadClient(entry) != null) {
                     Update update = entry.mUpdate;
                     update.setStatus(UpdateStatus.VERIFYING);
-                    removeDownloadClient(entry);
-                    verifyUpdateAsync(downloadId);
+                    // The client checked that the content matches the expected MD5, if any
+                    verifyUpdateAsync(downloadId, getExpectedMd5(update));
                     notifyUpdateChange(downloadId);
                     tryReleaseWakelock();
                 }
@@ -198,31 +254,63 @@ public class UpdaterController {
                     // Already notified
                 } else {
                     DownloadEntry entry = mDownloads.get(downloadId);
-                    if (entry != null) {
+                    if (entry != null && removeDownloadClient(entry) != null) {
                         Update update = entry.mUpdate;
                         Log.e(TAG, "Download failed");
-                        removeDownloadClient(entry);
                         update.setStatus(UpdateStatus.PAUSED_ERROR);
                         notifyUpdateChange(downloadId);
                     }
                 }
                 tryReleaseWakelock();
             }
+
+            @Override
+            public void onDigestMismatch() {
+                Log.e(TAG, "Download corrupted, checksum mismatch");
+                DownloadEntry entry = mDownloads.get(downloadId);
+                if (entry != null && removeDownloadClient(entry) != null) {
+                    Update update = entry.mUpdate;
+                    update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                    mUpdatesDbQueue.removeUpdate(downloadId);
+                    update.setProgress(0);
+                    update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+                    notifyUpdateChange(downloadId);
+                }
+                tryReleaseWakelock();
+            }
+
+            @Override
+            public void onNotModified() {
+            }
         };
     }
 
+    /**
+     * The download ID of updates coming from the server is the MD5 of the package
+     */
+    private static String getExpectedMd5(Update update) {
+        String downloadId = update.getDownloadId();
+        return downloadId != null && MD5_PATTERN.matcher(downloadId).matches() ?
+                downloadId : null;
+    }
+
     private DownloadClient.ProgressListener getProgressListener(final String downloadId) {
         return new DownloadClient.ProgressListener() {
             private long mLastUpdate = 0;
             private int mProgress = 0;
+            // Resolved once, this is called for every chunk read
+            private Update mUpdate;
 
             @Override
             public void update(long bytesRead, long contentLength, long speed, long eta) {
-                DownloadEntry entry = mDownloads.get(downloadId);
-                if (entry == null) {
-                    return;
+                if (mUpdate == null) {
+                    DownloadEntry entry = mDownloads.get(downloadId);
+                    if (entry == null) {
+                        return;
+                    }
+                    mUpdate = entry.mUpdate;
                 }
-                Update update = entry.mUpdate;
+                Update update = mUpdate;
                 if (contentLength <= 0) {
                     if (update.getFileSize() <= 0) {
                         return;
@@ -235,7 +323,7 @@ public class UpdaterController {
                 }
                 final long now = SystemClock.elapsedRealtime();
                 int progress = Math.round(bytesRead * 100f / contentLength);
-                if (progress != mProgress || mLastUpdate - now > MAX_REPORT_INTERVAL_MS) {
+                if (progress != mProgress || now - mLastUpdate > MAX_REPORT_INTERVAL_MS) {
                     mProgress = progress;
                     mLastUpdate = now;
                     update.setProgress(progress);
@@ -247,39 +335,67 @@ public class UpdaterController {
         };
     }
 
+    /**
+     * @param md5 the MD5 of the whole downloaded file if it was checked, null otherwise
+     */
     @SuppressLint("SetWorldReadable")
-    private void verifyUpdateAsync(final String downloadId) {
-        mVerifyingUpdates.add(downloadId);
+    private void verifyUpdateAsync(final String downloadId, final String md5) {
+        if (!mVerifyingUpdates.add(downloadId)) {
+            Log.d(TAG, downloadId + " is already being verified");
+            return;
+        }
+        DownloadEntry current = mDownloads.get(downloadId);
+        if (current != null) {
+            // From now on the progress is the one of the verification
+            current.mUpdate.setProgress(0);
+        }
         new Thread(() -> {
             DownloadEntry entry = mDownloads.get(downloadId);
             if (entry != null) {
                 Update update = entry.mUpdate;
                 File file = update.getFile();
-                if (file.exists() && verifyPackage(file)) {
+                if (file.exists() && verifyPackage(update, md5)) {
                     //noinspection ResultOfMethodCallIgnored
                     file.setReadable(true, false);
                     update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
-                    mUpdatesDbHelper.changeUpdateStatus(update);
+                    mUpdatesDbQueue.changeUpdateStatus(update);
+                    update.setProgress(100);
                     update.setStatus(UpdateStatus.VERIFIED);
                 } else {
                     update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-                    mUpdatesDbHelper.removeUpdate(downloadId);
+                    mUpdatesDbQueue.removeUpdate(downloadId);
                     update.setProgress(0);
                     update.setStatus(UpdateStatus.VERIFICATION_FAILED);
                 }
-                mVerifyingUpdates.remove(downloadId);
                 notifyUpdateChange(downloadId);
             }
+            mVerifyingUpdates.remove(downloadId);
         }).start();
     }
 
-    private boolean verifyPackage(File file) {
+    private boolean verifyPackage(Update update, String md5) {
+        final File file = update.getFile();
+        final String downloadId = update.getDownloadId();
+        // Only a package whose full digest was checked is recorded
+        if (mVerificationCache.isVerified(file, getExpectedMd5(update))) {
+            Log.d(TAG, file + " is unchanged since its verification");
+            return true;
+        }
         try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
+            PackageVerifier.verify(file, progress -> {
+                update.setProgress(progress);
+                notifyDownloadProgress(downloadId);
+            });
+            if (md5 != null) {
+                mVerificationCache.setVerified(file, md5);
+            } else {
+                mVerificationCache.invalidate(file);
+            }
             Log.e(TAG, "Verification successful");
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Verification failed", e);
+            mVerificationCache.invalidate(file);
             if (file.exists()) {
                 //noinspection ResultOfMethodCallIgnored
                 file.delete();
@@ -300,8 +416,8 @@ public class UpdaterController {
                     return false;
                 } else if (update.getFileSize() > 0) {
                     update.setStatus(UpdateStatus.PAUSED);
-                    int progress = Math.round(
-                            update.getFile().length() * 100f / update.getFileSize());
+                    int progress = Math.round(DownloadJournal.getDownloadedBytes(
+                            update.getFile()) * 100f / update.getFileSize());
                     update.setProgress(progress);
                 }
                 break;
@@ -309,7 +425,25 @@ public class UpdaterController {
         return true;
     }
 
-    public void setUpdatesAvailableOnline(List<String> downloadIds, boolean purgeList) {
+    /**
+     * Add the new and changed updates of the online list and mark the updates that
+     * are not part of it as unavailable online
+     *
+     * @param diff the changes of the online list
+     * @param purgeList remove the updates no longer online that weren't downloaded
+     * @return true if at least one update was added
+     */
+    public boolean setUpdatesAvailableOnline(UpdateListDiff diff, boolean purgeList) {
+        boolean newUpdates = false;
+        for (UpdateInfo update : diff.getUpdates()) {
+            // Unchanged updates only need to be added if they were never loaded
+            if (diff.isModified(update.getDownloadId()) ||
+                    !mDownloads.containsKey(update.getDownloadId())) {
+                newUpdates |= addUpdate(update);
+            }
+        }
+
+        Set<String> downloadIds = diff.getDownloadIds();
         List<String> toRemove = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
             boolean online = downloadIds.contains(entry.mUpdate.getDownloadId());
@@ -324,6 +458,7 @@ public class UpdaterController {
             mDownloads.remove(downloadId);
             notifyUpdateDelete(downloadId);
         }
+        return newUpdates;
     }
 
     public boolean addUpdate(UpdateInfo update) {
@@ -332,14 +467,12 @@ public class UpdaterController {
 
     public boolean addUpdate(final UpdateInfo updateInfo, boolean availableOnline) {
         Log.d(TAG, "Adding download: " + updateInfo.getDownloadId());
-        if (mDownloads.containsKey(updateInfo.getDownloadId())) {
+        DownloadEntry entry = mDownloads.get(updateInfo.getDownloadId());
+        if (entry != null) {
             Log.d(TAG, "Download (" + updateInfo.getDownloadId() + ") already added");
-            DownloadEntry entry = mDownloads.get(updateInfo.getDownloadId());
-            if (entry != null) {
-                Update updateAdded = entry.mUpdate;
-                updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
-                updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
-            }
+            Update updateAdded = entry.mUpdate;
+            updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
+            updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
             return false;
         }
         Update update = new Update(updateInfo);
@@ -350,19 +483,14 @@ public class UpdaterController {
             return false;
         }
         update.setAvailableOnline(availableOnline);
-        mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
-        return true;
+        return mDownloads.putIfAbsent(update.getDownloadId(), new DownloadEntry(update)) == null;
     }
 
     @SuppressLint("WakelockTimeout")
     public void startDownload(String downloadId) {
         Log.d(TAG, "Starting " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
-            return;
-        }
         DownloadEntry entry = mDownloads.get(downloadId);
-        if (entry == null) {
-            Log.e(TAG, "Could not get download entry");
+        if (entry == null || entry.mDownloadClient.get() != null) {
             return;
         }
         Update update = entry.mUpdate;
@@ -371,6 +499,11 @@ public class UpdaterController {
             destination = Utils.appendSequentialNumber(destination);
             Log.d(TAG, "Changing name with " + destination.getName());
         }
+        if (!isSpaceAvailable(update, StorageAdmission.Operation.DOWNLOAD)) {
+            update.setStatus(UpdateStatus.PAUSED_ERROR);
+            notifyUpdateChange(downloadId);
+            return;
+        }
         update.setFile(destination);
         DownloadClient downloadClient;
         try {
@@ -380,6 +513,10 @@ public class UpdaterController {
                     .setDownloadCallback(getDownloadCallback(downloadId))
                     .setProgressListener(getProgressListener(downloadId))
                     .setUseDuplicateLinks(true)
+                    .setMirrorSelector(mMirrorSelector)
+                    .setRateLimiter(mRateLimiter)
+                    .setSegments(DOWNLOAD_SEGMENTS)
+                    .setExpectedMd5(getExpectedMd5(update))
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -387,7 +524,10 @@ public class UpdaterController {
             notifyUpdateChange(downloadId);
             return;
         }
-        addDownloadClient(entry, downloadClient);
+        if (!addDownloadClient(entry, downloadClient)) {
+            Log.d(TAG, downloadId + " is already downloading");
+            return;
+        }
         update.setStatus(UpdateStatus.STARTING);
         notifyUpdateChange(downloadId);
         downloadClient.start();
@@ -397,12 +537,8 @@ public class UpdaterController {
     @SuppressLint("WakelockTimeout")
     public void resumeDownload(String downloadId) {
         Log.d(TAG, "Resuming " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
-            return;
-        }
         DownloadEntry entry = mDownloads.get(downloadId);
-        if (entry == null) {
-            Log.e(TAG, "Could not get download entry");
+        if (entry == null || entry.mDownloadClient.get() != null) {
             return;
         }
         Update update = entry.mUpdate;
@@ -413,10 +549,14 @@ public class UpdaterController {
             notifyUpdateChange(downloadId);
             return;
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
+        if (file.exists() && update.getFileSize() > 0 &&
+                DownloadJournal.getDownloadedBytes(file) >= update.getFileSize()) {
             Log.d(TAG, "File already downloaded, starting verification");
             update.setStatus(UpdateStatus.VERIFYING);
-            verifyUpdateAsync(downloadId);
+            verifyUpdateAsync(downloadId, null);
+            notifyUpdateChange(downloadId);
+        } else if (!isSpaceAvailable(update, StorageAdmission.Operation.DOWNLOAD)) {
+            update.setStatus(UpdateStatus.PAUSED_ERROR);
             notifyUpdateChange(downloadId);
         } else {
             DownloadClient downloadClient;
@@ -427,6 +567,10 @@ public class UpdaterController {
                         .setDownloadCallback(getDownloadCallback(downloadId))
                         .setProgressListener(getProgressListener(downloadId))
                         .setUseDuplicateLinks(true)
+                        .setMirrorSelector(mMirrorSelector)
+                        .setRateLimiter(mRateLimiter)
+                        .setSegments(DOWNLOAD_SEGMENTS)
+                        .setExpectedMd5(getExpectedMd5(update))
                         .build();
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
@@ -434,7 +578,10 @@ public class UpdaterController {
                 notifyUpdateChange(downloadId);
                 return;
             }
-            addDownloadClient(entry, downloadClient);
+            if (!addDownloadClient(entry, downloadClient)) {
+                Log.d(TAG, downloadId + " is already downloading");
+                return;
+            }
             update.setStatus(UpdateStatus.STARTING);
             notifyUpdateChange(downloadId);
             downloadClient.resume();
@@ -444,14 +591,14 @@ public class UpdaterController {
 
     public void pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
-        if (!isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
             return;
         }
 
-        DownloadEntry entry = mDownloads.get(downloadId);
-        if (entry != null) {
-            entry.mDownloadClient.cancel();
-            removeDownloadClient(entry);
+        DownloadClient downloadClient = removeDownloadClient(entry);
+        if (downloadClient != null) {
+            downloadClient.cancel();
             entry.mUpdate.setStatus(UpdateStatus.PAUSED);
             entry.mUpdate.setEta(0);
             entry.mUpdate.setSpeed(0);
@@ -460,22 +607,39 @@ public class UpdaterController {
     }
 
     private void deleteUpdateAsync(final Update update) {
-        new Thread(() -> {
+        mUpdatesDbQueue.execute(() -> {
             File file = update.getFile();
             if (file.exists() && !file.delete()) {
                 Log.e(TAG, "Could not delete " + file.getAbsolutePath());
             }
-            mUpdatesDbHelper.removeUpdate(update.getDownloadId());
-        }).start();
+            DownloadJournal.delete(file);
+            mVerificationCache.invalidate(file);
+        });
+        mUpdatesDbQueue.removeUpdate(update.getDownloadId());
+    }
+
+    /**
+     * Run the given task in the background once the pending database writes and
+     * file deletions are done
+     */
+    void runAfterPendingWrites(Runnable task) {
+        mUpdatesDbQueue.execute(task);
+    }
+
+    /**
+     * Wait until all the pending database writes are applied. Not to be called from
+     * the main thread.
+     *
+     * @return false if they weren't applied within the given time
+     */
+    public boolean flushPendingWrites(long timeoutMs) {
+        return mUpdatesDbQueue.flush(timeoutMs);
     }
 
     public void deleteUpdate(String downloadId) {
         Log.d(TAG, "Deleting update: " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
-            return;
-        }
         DownloadEntry entry = mDownloads.get(downloadId);
-        if (entry != null) {
+        if (entry != null && entry.mDownloadClient.get() == null) {
             Update update = entry.mUpdate;
             update.setStatus(UpdateStatus.DELETED);
             update.setProgress(0);
@@ -512,17 +676,16 @@ public class UpdaterController {
     }
 
     public boolean isDownloading(String downloadId) {
-        //noinspection ConstantConditions
-        return mDownloads.containsKey(downloadId) &&
-                mDownloads.get(downloadId).mDownloadClient != null;
+        DownloadEntry entry = mDownloads.get(downloadId);
+        return entry != null && entry.mDownloadClient.get() != null;
     }
 
     public boolean hasActiveDownloads() {
-        return mActiveDownloads > 0;
+        return mActiveDownloads.get() > 0;
     }
 
     public boolean isVerifyingUpdate() {
-        return mVerifyingUpdates.size() > 0;
+        return !mVerifyingUpdates.isEmpty();
     }
 
     public boolean isVerifyingUpdate(String downloadId) {
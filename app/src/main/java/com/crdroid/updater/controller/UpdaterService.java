@@ -81,6 +81,7 @@ public class UpdaterService extends Service {
     private NotificationCompat.BigTextStyle mNotificationStyle;
 
     private UpdaterController mUpdaterController;
+    private ProgressChannel.Listener mProgressListener;
 
     @Override
     public void onCreate() {
@@ -117,9 +118,6 @@ public class UpdaterService extends Service {
                     extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, downloadId);
                     mNotificationBuilder.setExtras(extras);
                     handleUpdateStatusChange(update);
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    handleDownloadProgressChange(update);
                 } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
                     UpdateInfo update = mUpdaterController.getUpdate(downloadId);
                     setNotificationTitle(update);
@@ -139,17 +137,29 @@ public class UpdaterService extends Service {
             }
         };
         IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
 
+        mProgressListener = downloadId -> {
+            UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+            if (update == null) {
+                return;
+            }
+            if (update.getStatus() == UpdateStatus.VERIFYING) {
+                handleVerifyProgress(update);
+            } else {
+                handleDownloadProgressChange(update);
+            }
+        };
+        mUpdaterController.getProgressChannel().addListener(mProgressListener);
     }
 
     @Override
     public void onDestroy() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mUpdaterController.getProgressChannel().removeListener(mProgressListener);
         super.onDestroy();
     }
 
@@ -335,7 +345,7 @@ public class UpdaterService extends Service {
                 break;
             }
             case VERIFYING: {
-                mNotificationBuilder.setProgress(0, 0, true);
+                mNotificationBuilder.setProgress(100, update.getProgress(), false);
                 mNotificationStyle.setSummaryText(null);
                 mNotificationBuilder.setStyle(mNotificationStyle);
                 mNotificationBuilder.setSmallIcon(R.drawable.ic_system_update);
@@ -482,6 +492,14 @@ public class UpdaterService extends Service {
         mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
     }
 
+    private void handleVerifyProgress(UpdateInfo update) {
+        int progress = update.getProgress();
+        mNotificationBuilder.setProgress(100, progress, false);
+        String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
+        mNotificationStyle.setSummaryText(percent);
+        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+    }
+
     private void handleInstallProgress(UpdateInfo update) {
         setNotificationTitle(update);
         int progress = update.getInstallProgress();
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.controller;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.crdroid.updater.UpdatesDbHelper;
+import com.crdroid.updater.model.Update;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Serializes the writes to the updates database on a single background thread.
+ * Writes queued for the same download ID are coalesced and all the pending writes
+ * are applied in one transaction.
+ */
+class UpdatesDbQueue {
+
+    private static final String TAG = "UpdatesDbQueue";
+
+    private static final int TYPE_ADD = 0;
+    private static final int TYPE_CHANGE_STATUS = 1;
+    private static final int TYPE_REMOVE = 2;
+
+    private static class PendingWrite {
+        private int mType;
+        private ContentValues mValues;
+        private int mStatus;
+    }
+
+    private final UpdatesDbHelper mUpdatesDbHelper;
+    private final ExecutorService mExecutor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, TAG));
+
+    private final Map<String, PendingWrite> mPending = new LinkedHashMap<>();
+    private boolean mDrainScheduled = false;
+
+    UpdatesDbQueue(UpdatesDbHelper updatesDbHelper) {
+        mUpdatesDbHelper = updatesDbHelper;
+    }
+
+    /**
+     * Insert or replace the given update, using its current values
+     */
+    void addUpdate(Update update) {
+        PendingWrite write = new PendingWrite();
+        write.mType = TYPE_ADD;
+        write.mValues = UpdatesDbHelper.getContentValues(update);
+        enqueue(update.getDownloadId(), write);
+    }
+
+    void changeUpdateStatus(Update update) {
+        PendingWrite write = new PendingWrite();
+        write.mType = TYPE_CHANGE_STATUS;
+        write.mStatus = update.getPersistentStatus();
+        enqueue(update.getDownloadId(), write);
+    }
+
+    void removeUpdate(String downloadId) {
+        PendingWrite write = new PendingWrite();
+        write.mType = TYPE_REMOVE;
+        enqueue(downloadId, write);
+    }
+
+    /**
+     * Run the given task on the persistence thread, after the writes queued so far
+     */
+    void execute(Runnable task) {
+        // Pending writes always have a drain scheduled ahead of the task
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Wait until all the writes queued so far are applied. Not to be called from
+     * the main thread.
+     *
+     * @return false if they weren't applied within the given time
+     */
+    boolean flush(long timeoutMs) {
+        Future<?> marker = mExecutor.submit(() -> { });
+        try {
+            marker.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            Log.e(TAG, "Could not flush the pending writes", e);
+            return false;
+        }
+    }
+
+    private void enqueue(String downloadId, PendingWrite write) {
+        synchronized (mPending) {
+            PendingWrite pending = mPending.get(downloadId);
+            if (pending != null && pending.mType == TYPE_ADD &&
+                    write.mType == TYPE_CHANGE_STATUS) {
+                // The row isn't written yet, store the new status with it
+                pending.mValues.put(UpdatesDbHelper.UpdateEntry.COLUMN_NAME_STATUS,
+                        write.mStatus);
+            } else if (pending == null || pending.mType != TYPE_REMOVE ||
+                    write.mType != TYPE_CHANGE_STATUS) {
+                // A status change after a removal would be a no-op, anything else
+                // supersedes the pending write
+                mPending.put(downloadId, write);
+            }
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mExecutor.execute(this::drain);
+            }
+        }
+    }
+
+    private void drain() {
+        final Map<String, PendingWrite> writes;
+        synchronized (mPending) {
+            mDrainScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            writes = new LinkedHashMap<>(mPending);
+            mPending.clear();
+        }
+        try {
+            mUpdatesDbHelper.runInTransaction(() -> {
+                for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+                    PendingWrite write = entry.getValue();
+                    switch (write.mType) {
+                        case TYPE_ADD:
+                            mUpdatesDbHelper.addUpdateWithOnConflict(write.mValues,
+                                    SQLiteDatabase.CONFLICT_REPLACE);
+                            break;
+                        case TYPE_CHANGE_STATUS:
+                            mUpdatesDbHelper.changeUpdateStatus(entry.getKey(), write.mStatus);
+                            break;
+                        case TYPE_REMOVE:
+                            mUpdatesDbHelper.removeUpdate(entry.getKey());
+                            break;
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not write " + writes.size() + " updates", e);
+        }
+    }
+}
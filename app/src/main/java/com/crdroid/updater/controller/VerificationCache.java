@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.controller;
+
+import android.content.ContentValues;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import com.crdroid.updater.UpdatesDbHelper;
+import com.crdroid.updater.UpdatesDbHelper.VerificationEntry;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Remembers the packages that were verified, so that they aren't read again as long
+ * as they don't change. A record holds the size, modification time and inode of the
+ * file, and the MD5 of all of its content, as checked while it was downloaded. A
+ * package whose full digest isn't known isn't recorded. Any difference makes the
+ * record stale, it's up to the caller to replace or invalidate it. The records are
+ * written by the persistence queue, and the ones not written yet are kept in memory
+ * meanwhile.
+ */
+public class VerificationCache {
+
+    private static final String TAG = "VerificationCache";
+
+    // Marks the pending removals
+    private static final ContentValues REMOVED = new ContentValues();
+
+    private final UpdatesDbHelper mUpdatesDbHelper;
+    private final UpdatesDbQueue mUpdatesDbQueue;
+
+    // Records queued but not written yet, keyed by path
+    private final Map<String, ContentValues> mPending = new HashMap<>();
+
+    VerificationCache(UpdatesDbHelper updatesDbHelper, UpdatesDbQueue updatesDbQueue) {
+        mUpdatesDbHelper = updatesDbHelper;
+        mUpdatesDbQueue = updatesDbQueue;
+    }
+
+    /**
+     * @param md5 the expected MD5 of the content of the file
+     * @return whether the given file was verified with this content and didn't change
+     *         since then
+     */
+    public boolean isVerified(File file, String md5) {
+        if (md5 == null) {
+            return false;
+        }
+        final String path = file.getAbsolutePath();
+        ContentValues recorded = getRecord(path);
+        if (recorded == null) {
+            return false;
+        }
+        ContentValues current = getIdentity(path);
+        if (current != null &&
+                Objects.equals(current.getAsLong(VerificationEntry.COLUMN_NAME_SIZE),
+                        recorded.getAsLong(VerificationEntry.COLUMN_NAME_SIZE)) &&
+                Objects.equals(current.getAsLong(VerificationEntry.COLUMN_NAME_MTIME),
+                        recorded.getAsLong(VerificationEntry.COLUMN_NAME_MTIME)) &&
+                Objects.equals(current.getAsLong(VerificationEntry.COLUMN_NAME_INODE),
+                        recorded.getAsLong(VerificationEntry.COLUMN_NAME_INODE)) &&
+                md5.equalsIgnoreCase(
+                        recorded.getAsString(VerificationEntry.COLUMN_NAME_DIGEST))) {
+            return true;
+        }
+        Log.d(TAG, path + " changed since it was verified");
+        return false;
+    }
+
+    /**
+     * Record that the given file was verified
+     *
+     * @param md5 the MD5 of the whole content of the file, computed from the bytes
+     *            that were actually written
+     */
+    public void setVerified(File file, String md5) {
+        final String path = file.getAbsolutePath();
+        ContentValues identity = getIdentity(path);
+        if (identity != null) {
+            identity.put(VerificationEntry.COLUMN_NAME_DIGEST, md5);
+            write(path, identity);
+        } else {
+            write(path, REMOVED);
+        }
+    }
+
+    public void invalidate(File file) {
+        write(file.getAbsolutePath(), REMOVED);
+    }
+
+    private ContentValues getRecord(String path) {
+        synchronized (mPending) {
+            ContentValues pending = mPending.get(path);
+            if (pending != null) {
+                return pending != REMOVED ? pending : null;
+            }
+        }
+        return mUpdatesDbHelper.getVerification(path);
+    }
+
+    private void write(String path, ContentValues values) {
+        synchronized (mPending) {
+            mPending.put(path, values);
+        }
+        mUpdatesDbQueue.execute(() -> {
+            try {
+                if (values != REMOVED) {
+                    mUpdatesDbHelper.addVerification(values);
+                } else {
+                    mUpdatesDbHelper.removeVerification(path);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not write the record of " + path, e);
+            } finally {
+                synchronized (mPending) {
+                    // Unless it was replaced in the meantime
+                    mPending.remove(path, values);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the columns identifying the given file, without its digest, or null if
+     *         it can't be identified, e.g. if it's not a regular file
+     */
+    private static ContentValues getIdentity(String path) {
+        try {
+            StructStat stat = Os.stat(path);
+            if (!OsConstants.S_ISREG(stat.st_mode)) {
+                return null;
+            }
+            ContentValues values = new ContentValues();
+            values.put(VerificationEntry.COLUMN_NAME_PATH, path);
+            values.put(VerificationEntry.COLUMN_NAME_SIZE, stat.st_size);
+            values.put(VerificationEntry.COLUMN_NAME_MTIME,
+                    stat.st_mtim.tv_sec * 1000000000L + stat.st_mtim.tv_nsec);
+            values.put(VerificationEntry.COLUMN_NAME_INODE, stat.st_ino);
+            return values;
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Could not identify " + path, e);
+            return null;
+        }
+    }
+}
@@ -26,6 +26,18 @@ public interface DownloadClient {
         void onSuccess();
 
         void onFailure(boolean cancelled);
+
+        /**
+         * Called instead of onSuccess() when the downloaded file doesn't match the
+         * expected digest. The file has already been deleted.
+         */
+        void onDigestMismatch();
+
+        /**
+         * Called instead of onSuccess() when the server replied to a conditional
+         * request that the resource didn't change. The destination isn't created.
+         */
+        void onNotModified();
     }
 
     interface ProgressListener {
@@ -60,6 +72,12 @@ public interface DownloadClient {
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private int mSegments = 1;
+        private String mExpectedMd5;
+        private HttpValidators mValidators;
+        private MirrorSelector mMirrorSelector;
+        private boolean mKeepCompressed;
+        private RateLimiter mRateLimiter;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -68,9 +86,12 @@ public interface DownloadClient {
                 throw new IllegalStateException("No download destination defined");
             } else if (mCallback == null) {
                 throw new IllegalStateException("No download callback defined");
+            } else if (mKeepCompressed && mSegments > 1) {
+                throw new IllegalStateException("Compressed downloads can't be segmented");
             }
             return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+                    mUseDuplicateLinks, mSegments, mExpectedMd5, mValidators,
+                    mMirrorSelector, mKeepCompressed, mRateLimiter);
         }
 
         public Builder setUrl(String url) {
@@ -97,5 +118,66 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Split the download in the given number of ranges fetched in parallel. If the
+         * server doesn't fulfil partial content requests, the file is downloaded with a
+         * single connection.
+         */
+        public Builder setSegments(int segments) {
+            if (segments < 1) {
+                throw new IllegalArgumentException("Invalid number of segments: " + segments);
+            }
+            mSegments = segments;
+            return this;
+        }
+
+        /**
+         * Compute the MD5 of the file while it's written and compare it with the given
+         * one once the download completes.
+         */
+        public Builder setExpectedMd5(String md5) {
+            mExpectedMd5 = md5;
+            return this;
+        }
+
+        /**
+         * Make the request conditional on the given validators of a cached copy of
+         * the resource. If the server replies that it didn't change,
+         * DownloadCallback.onNotModified() is called instead of onSuccess().
+         */
+        public Builder setValidators(HttpValidators validators) {
+            mValidators = validators;
+            return this;
+        }
+
+        /**
+         * Choose among the duplicate links of the download with the given selector
+         * rather than only by their priority, and move to a faster mirror if the one
+         * used gets slow. Only relevant with setUseDuplicateLinks().
+         */
+        public Builder setMirrorSelector(MirrorSelector mirrorSelector) {
+            mMirrorSelector = mirrorSelector;
+            return this;
+        }
+
+        /**
+         * Ask for a gzip compressed response and write it to the destination as
+         * received, rather than letting HttpURLConnection decompress it. The file
+         * may then be compressed or not, depending on the server.
+         */
+        public Builder setKeepCompressed(boolean keepCompressed) {
+            mKeepCompressed = keepCompressed;
+            return this;
+        }
+
+        /**
+         * Limit the speed of the download with the given limiter. Its rate can be
+         * changed while downloading, and a limiter can be shared by several downloads.
+         */
+        public Builder setRateLimiter(RateLimiter rateLimiter) {
+            mRateLimiter = rateLimiter;
+            return this;
+        }
     }
 }
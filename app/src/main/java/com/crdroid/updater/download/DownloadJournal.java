@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.download;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sidecar file stored next to a download listing the byte ranges that were written
+ * and synced to disk. Downloads written out of order can be resumed by fetching
+ * only the ranges that are missing.
+ */
+public class DownloadJournal {
+
+    private static final String TAG = "DownloadJournal";
+
+    public static final String FILE_EXT = ".journal";
+
+    private static final int MAGIC = 0x55444a4c;
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final long mLength;
+    private final List<Range> mCommitted = new ArrayList<>();
+
+    static final class Range {
+        private final long mStart;
+        private final long mEnd;
+
+        Range(long start, long end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        long getStart() {
+            return mStart;
+        }
+
+        long getEnd() {
+            return mEnd;
+        }
+
+        long getLength() {
+            return mEnd - mStart;
+        }
+    }
+
+    private DownloadJournal(File file, long length) {
+        mFile = file;
+        mLength = length;
+    }
+
+    public static File getFile(File destination) {
+        return new File(destination.getParentFile(), destination.getName() + FILE_EXT);
+    }
+
+    /**
+     * Create an empty journal for the given destination, overwriting any existing one
+     */
+    static DownloadJournal create(File destination, long length) throws IOException {
+        DownloadJournal journal = new DownloadJournal(getFile(destination), length);
+        journal.save();
+        return journal;
+    }
+
+    /**
+     * Read the journal of the given destination
+     *
+     * @param destination the file being downloaded
+     * @return the journal, or null if it doesn't exist or doesn't match the destination
+     */
+    static DownloadJournal load(File destination) {
+        File file = getFile(destination);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown journal format");
+            }
+            long length = in.readLong();
+            int count = in.readInt();
+            if (length <= 0 || count < 0) {
+                throw new IOException("Invalid journal header");
+            }
+            DownloadJournal journal = new DownloadJournal(file, length);
+            for (int i = 0; i < count; i++) {
+                long start = in.readLong();
+                long end = in.readLong();
+                if (start < 0 || start >= end || end > length) {
+                    throw new IOException("Invalid range " + start + "-" + end);
+                }
+                journal.commit(start, end);
+            }
+            if (destination.length() != length) {
+                Log.e(TAG, "The size of " + destination + " doesn't match the journal");
+                return null;
+            }
+            return journal;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            return null;
+        }
+    }
+
+    public static void delete(File destination) {
+        File file = getFile(destination);
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Could not delete " + file);
+        }
+    }
+
+    /**
+     * @return whether the given destination has a journal, valid or not. A segmented
+     *         download keeps it from before the file is preallocated until all the
+     *         ranges are written.
+     */
+    static boolean exists(File destination) {
+        return getFile(destination).exists();
+    }
+
+    /**
+     * Get the number of bytes of the given destination that can be kept when resuming
+     */
+    public static long getDownloadedBytes(File destination) {
+        if (!exists(destination)) {
+            // Written sequentially, or complete
+            return destination.length();
+        }
+        DownloadJournal journal = load(destination);
+        // The file was preallocated, without a valid journal none of it can be trusted
+        return journal != null ? journal.getCommittedBytes() : 0;
+    }
+
+    long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Mark the given range as synced to disk. The journal must be saved afterwards.
+     */
+    synchronized void commit(long start, long end) {
+        int i = 0;
+        while (i < mCommitted.size() && mCommitted.get(i).getEnd() < start) {
+            i++;
+        }
+        // Merge with all the ranges overlapping or adjacent to the new one
+        while (i < mCommitted.size() && mCommitted.get(i).getStart() <= end) {
+            Range range = mCommitted.remove(i);
+            start = Math.min(start, range.getStart());
+            end = Math.max(end, range.getEnd());
+        }
+        mCommitted.add(i, new Range(start, end));
+    }
+
+    synchronized void save() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mLength);
+            out.writeInt(mCommitted.size());
+            for (Range range : mCommitted) {
+                out.writeLong(range.getStart());
+                out.writeLong(range.getEnd());
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Could not write " + mFile);
+        }
+    }
+
+    synchronized long getCommittedBytes() {
+        long bytes = 0;
+        for (Range range : mCommitted) {
+            bytes += range.getLength();
+        }
+        return bytes;
+    }
+
+    synchronized List<Range> getCommittedRanges() {
+        return new ArrayList<>(mCommitted);
+    }
+
+    synchronized List<Range> getMissingRanges() {
+        List<Range> missing = new ArrayList<>();
+        long position = 0;
+        for (Range range : mCommitted) {
+            if (range.getStart() > position) {
+                missing.add(new Range(position, range.getStart()));
+            }
+            position = range.getEnd();
+        }
+        if (position < mLength) {
+            missing.add(new Range(position, mLength));
+        }
+        return missing;
+    }
+
+    void delete() {
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(TAG, "Could not delete " + mFile);
+        }
+    }
+}
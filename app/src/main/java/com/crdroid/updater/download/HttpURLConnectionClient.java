@@ -16,19 +16,30 @@
 package com.crdroid.updater.download;
 
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,12 +47,44 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    // Ranges aren't split further when smaller than this
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    // Written data is synced and recorded in the journal after this many bytes
+    private static final long COMMIT_INTERVAL = 8 * 1024 * 1024;
+
+    // A segment moves to another mirror when its speed stays below this for a window
+    private static final long SLOW_MIRROR_SPEED = 256 * 1024;
+    private static final long SLOW_MIRROR_WINDOW_MS = 10000;
+
+    // A connection that doesn't deliver anything for this long is considered broken
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    // A mirror isn't used anymore after failing this many times without progress
+    private static final int MAX_MIRROR_FAILURES = 3;
+
+    // Delay before continuing a range from another mirror, doubled after each failure
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+
+    // Responses with more data left than this aren't read to reuse their connection
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final Pattern CONTENT_RANGE_PATTERN =
+            Pattern.compile("(?i)bytes\\s+(\\d+)-(\\d+)/(\\d+)");
+
     private HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final int mSegments;
+    private final String mExpectedMd5;
+    private final HttpValidators mValidators;
+    private final MirrorSelector mMirrorSelector;
+    private final boolean mKeepCompressed;
+    private final RateLimiter mRateLimiter;
 
     private DownloadThread mDownloadThread;
 
@@ -56,12 +99,24 @@ public class HttpURLConnectionClient implements DownloadClient {
     HttpURLConnectionClient(String url, File destination,
             DownloadClient.ProgressListener progressListener,
             DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
+            boolean useDuplicateLinks,
+            int segments,
+            String expectedMd5,
+            HttpValidators validators,
+            MirrorSelector mirrorSelector,
+            boolean keepCompressed,
+            RateLimiter rateLimiter) throws IOException {
         mClient = (HttpURLConnection) new URL(url).openConnection();
         mDestination = destination;
         mProgressListener = progressListener;
         mCallback = callback;
         mUseDuplicateLinks = useDuplicateLinks;
+        mSegments = segments;
+        mExpectedMd5 = expectedMd5;
+        mValidators = validators;
+        mMirrorSelector = mirrorSelector;
+        mKeepCompressed = keepCompressed;
+        mRateLimiter = rateLimiter;
     }
 
     @Override
@@ -97,21 +152,70 @@ public class HttpURLConnectionClient implements DownloadClient {
             mCallback.onFailure(false);
             return;
         }
-        long offset = mDestination.length();
-        mClient.setRequestProperty("Range", "bytes=" + offset + "-");
-        downloadFileInternalCommon(true);
+        DownloadJournal journal = DownloadJournal.load(mDestination);
+        if (journal != null) {
+            Log.d(TAG, "Resuming from journal, " + journal.getCommittedBytes() + "/" +
+                    journal.getLength() + " bytes downloaded");
+            downloadFileInternalCommon(true, journal);
+        } else if (DownloadJournal.exists(mDestination)) {
+            // The file was preallocated to its full length, its size says nothing
+            // about what was downloaded
+            Log.e(TAG, "Invalid journal, downloading " + mDestination + " again");
+            DownloadJournal.delete(mDestination);
+            downloadFileInternalCommon(false);
+        } else {
+            long offset = mDestination.length();
+            mClient.setRequestProperty("Range", "bytes=" + offset + "-");
+            downloadFileInternalCommon(true);
+        }
     }
 
     private void downloadFileInternalCommon(boolean resume) {
+        downloadFileInternalCommon(resume, null);
+    }
+
+    private void downloadFileInternalCommon(boolean resume, DownloadJournal journal) {
         if (mDownloadThread != null) {
             Log.wtf(TAG, "Already downloading");
             return;
         }
 
-        mDownloadThread = new DownloadThread(resume);
+        mDownloadThread = new DownloadThread(resume, journal);
         mDownloadThread.start();
     }
 
+    /**
+     * Split the largest ranges in halves until there are at least the given number
+     * of ranges or they are too small to be split further
+     */
+    private static List<DownloadJournal.Range> splitRanges(List<DownloadJournal.Range> ranges,
+            int count) {
+        List<DownloadJournal.Range> result = new ArrayList<>(ranges);
+        while (result.size() < count) {
+            int largest = 0;
+            for (int i = 1; i < result.size(); i++) {
+                if (result.get(i).getLength() > result.get(largest).getLength()) {
+                    largest = i;
+                }
+            }
+            DownloadJournal.Range range = result.get(largest);
+            if (range.getLength() < MIN_SEGMENT_SIZE * 2) {
+                break;
+            }
+            long middle = range.getStart() + range.getLength() / 2;
+            result.set(largest, new DownloadJournal.Range(range.getStart(), middle));
+            result.add(largest + 1, new DownloadJournal.Range(middle, range.getEnd()));
+        }
+        return result;
+    }
+
+    /**
+     * @return the time in milliseconds to wait after reading the given amount of bytes
+     */
+    private long throttle(int count) {
+        return mRateLimiter != null ? mRateLimiter.consume(count) : 0;
+    }
+
     private static boolean isSuccessCode(int statusCode) {
         return (statusCode / 100) == 2;
     }
@@ -124,6 +228,84 @@ public class HttpURLConnectionClient implements DownloadClient {
         return statusCode == 206;
     }
 
+    /**
+     * Close the response of the given connection. HttpURLConnection keeps connections
+     * alive in a pool shared by the whole process, so the next request to the same
+     * server can skip the DNS lookup and the TCP and TLS handshakes. This only works
+     * if the response is read to its end, disconnect() closes the socket instead.
+     * Must only be called once the response code was received.
+     */
+    static void release(HttpURLConnection connection) {
+        try {
+            InputStream inputStream = connection.getResponseCode() >= 400 ?
+                    connection.getErrorStream() : connection.getInputStream();
+            if (inputStream != null) {
+                try (InputStream in = inputStream) {
+                    byte[] buffer = new byte[8192];
+                    long drained = 0;
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        drained += read;
+                        if (drained > MAX_DRAIN_BYTES) {
+                            throw new IOException("Too much data left");
+                        }
+                    }
+                }
+            }
+            return;
+        } catch (IOException e) {
+            Log.d(TAG, "Not reusing the connection to " + connection.getURL().getHost(), e);
+        }
+        connection.disconnect();
+    }
+
+    /**
+     * Reserve the blocks of the whole file, so that it's laid out contiguously and
+     * the download fails before fetching anything if there isn't enough space
+     */
+    private static void preallocate(RandomAccessFile file, long length) throws IOException {
+        try {
+            Os.posix_fallocate(file.getFD(), 0, length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("Not enough space for " + length + " bytes", e);
+            }
+            // Not supported by the file system, use a sparse file
+            Log.w(TAG, "Could not preallocate the file", e);
+            file.setLength(length);
+        }
+    }
+
+    /**
+     * Get the complete length of the resource from a Content-Range header
+     *
+     * @param contentRange value of the header, e.g. "bytes 0-1023/4096"
+     * @return the complete length, or -1 if unknown
+     */
+    private static long getContentRangeLength(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+        if (!matcher.matches()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(matcher.group(3));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Failure to write the downloaded data, as opposed to a failure of the connection
+     */
+    private static class WriteException extends IOException {
+        private WriteException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
     private class DownloadThread extends Thread {
 
         private long mTotalBytes = 0;
@@ -135,9 +317,24 @@ public class HttpURLConnectionClient implements DownloadClient {
         private long mEta = -1;
 
         private final boolean mResume;
+        private final DownloadJournal mJournal;
+
+        private StreamingDigest mDigest;
+
+        private final Object mSegmentLock = new Object();
+        private int mPendingSegments;
+        private IOException mSegmentError;
 
-        private DownloadThread(boolean resume) {
+        // Mirrors of the file, from the most to the least promising
+        private List<URL> mMirrors = new ArrayList<>();
+        // Whether the scores of the mirrors changed during the download
+        private volatile boolean mScoresChanged = false;
+        // Consecutive failures of each mirror
+        private final Map<String, Integer> mMirrorFailures = new HashMap<>();
+
+        private DownloadThread(boolean resume, DownloadJournal journal) {
             mResume = resume;
+            mJournal = journal;
         }
 
         private void calculateSpeed(boolean justResumed) {
@@ -174,10 +371,19 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
         }
 
-        private void changeClientUrl(URL newUrl) throws IOException {
+        /**
+         * @param reuse whether the current connection got a response and can be kept
+         *              alive for later requests
+         */
+        private void changeClientUrl(URL newUrl, boolean reuse) throws IOException {
             String range = mClient.getRequestProperty("Range");
-            mClient.disconnect();
+            if (reuse) {
+                release(mClient);
+            } else {
+                mClient.disconnect();
+            }
             mClient = (HttpURLConnection) newUrl.openConnection();
+            mClient.setReadTimeout(READ_TIMEOUT_MS);
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
@@ -221,43 +427,156 @@ public class HttpURLConnectionClient implements DownloadClient {
                 }
             }
 
-            String newUrl = mClient.getHeaderField("Location");
-            for (;;) {
+            // Not a set of URLs, URL.equals() resolves the hosts
+            Set<String> links = new LinkedHashSet<>();
+            links.add(mClient.getHeaderField("Location"));
+            while (duplicates != null && !duplicates.isEmpty()) {
+                links.add(duplicates.poll().mUrl);
+            }
+            List<URL> mirrors = new ArrayList<>();
+            for (String link : links) {
+                try {
+                    mirrors.add(new URL(link));
+                } catch (MalformedURLException e) {
+                    Log.d(TAG, "Ignoring invalid link " + link);
+                }
+            }
+            if (mirrors.isEmpty()) {
+                throw new IOException("No valid mirror");
+            }
+            if (mMirrorSelector != null && mirrors.size() > 1) {
+                mirrors = mMirrorSelector.rank(mirrors);
+            }
+
+            IOException error = null;
+            for (URL url : mirrors) {
                 try {
-                    URL url = new URL(newUrl);
                     if (!url.getProtocol().equals(protocol)) {
                         // If we hadn't handled duplicate links, we wouldn't have
                         // used this url.
                         throw new IOException("Protocol changes are not allowed");
                     }
-                    Log.d(TAG, "Downloading from " + newUrl);
-                    changeClientUrl(url);
+                    Log.d(TAG, "Downloading from " + url);
+                    // Only the redirect is known to have a complete response
+                    changeClientUrl(url, error == null);
                     mClient.setConnectTimeout(5000);
                     mClient.connect();
                     if (!isSuccessCode(mClient.getResponseCode())) {
                         throw new IOException("Server replied with " + mClient.getResponseCode());
                     }
+                    synchronized (mSegmentLock) {
+                        mMirrors = mirrors;
+                    }
                     return;
                 } catch (IOException e) {
-                    if (duplicates != null && !duplicates.isEmpty()) {
-                        DuplicateLink link = duplicates.poll();
-                        if (link != null) {
-                            duplicates.remove(link);
-                            newUrl = link.mUrl;
-                            Log.e(TAG, "Using duplicate link " + link.mUrl, e);
-                        }
-                    } else {
-                        throw e;
+                    Log.e(TAG, "Could not download from " + url, e);
+                    error = e;
+                }
+            }
+            throw error;
+        }
+
+        /**
+         * Called by a segment when the connection to its mirror failed
+         *
+         * @param progressed whether the connection delivered data before failing
+         * @return the mirror to continue from, or null if none is left
+         */
+        private URL onMirrorFailed(URL url, boolean progressed) {
+            synchronized (mSegmentLock) {
+                String failed = url.toString();
+                int failures = progressed ? 1 : mMirrorFailures.getOrDefault(failed, 0) + 1;
+                mMirrorFailures.put(failed, failures);
+
+                List<URL> mirrors = mMirrors.isEmpty() ?
+                        Collections.singletonList(url) : mMirrors;
+                URL fallback = null;
+                for (URL mirror : mirrors) {
+                    String key = mirror.toString();
+                    if (mMirrorFailures.getOrDefault(key, 0) >= MAX_MIRROR_FAILURES) {
+                        continue;
                     }
+                    if (!key.equals(failed)) {
+                        return mirror;
+                    }
+                    // Retry the same mirror only if there's no other
+                    fallback = mirror;
                 }
+                return fallback;
             }
         }
 
+        /**
+         * Called by a segment when the mirror it uses is too slow
+         *
+         * @return the mirror to use instead, or null if none is expected to be faster
+         */
+        private URL onSlowMirror(URL url, long speed) {
+            if (mMirrorSelector == null) {
+                return null;
+            }
+            mMirrorSelector.recordSpeed(url, speed);
+            URL best = null;
+            long bestScore = speed;
+            synchronized (mSegmentLock) {
+                for (URL mirror : mMirrors) {
+                    long score = mMirrorSelector.getScore(mirror);
+                    if (!mirror.toString().equals(url.toString()) && score > bestScore) {
+                        best = mirror;
+                        bestScore = score;
+                    }
+                }
+            }
+            // Saved once the download ends, not to write while transferring
+            mScoresChanged = true;
+            return best;
+        }
+
         @Override
         public void run() {
             boolean justResumed = false;
+            // Whether the connection is in a state where it can be kept alive
+            boolean reusable = false;
             try {
+                List<DownloadJournal.Range> missingRanges = null;
+                final boolean segmented = !mResume && mSegments > 1;
+                if (mJournal != null) {
+                    missingRanges = mJournal.getMissingRanges();
+                    if (missingRanges.isEmpty()) {
+                        Log.d(TAG, "All the ranges were already downloaded");
+                        mJournal.delete();
+                        if (mExpectedMd5 != null) {
+                            mDigest = new StreamingDigest("MD5", mDestination);
+                        }
+                        if (checkDigest(mJournal.getLength())) {
+                            mCallback.onSuccess();
+                        }
+                        return;
+                    }
+                    DownloadJournal.Range first = missingRanges.get(0);
+                    mClient.setRequestProperty("Range",
+                            "bytes=" + first.getStart() + "-" + (first.getEnd() - 1));
+                } else if (segmented) {
+                    // Ask for the whole file as a range to learn whether the server
+                    // can fulfil partial content requests
+                    mClient.setRequestProperty("Range", "bytes=0-");
+                    DownloadJournal.delete(mDestination);
+                }
+                if (mValidators != null && !mResume) {
+                    if (mValidators.getETag() != null) {
+                        mClient.setRequestProperty("If-None-Match", mValidators.getETag());
+                    }
+                    if (mValidators.getLastModified() != null) {
+                        mClient.setRequestProperty("If-Modified-Since",
+                                mValidators.getLastModified());
+                    }
+                }
+                if (mKeepCompressed && !mResume) {
+                    // Setting the header ourselves disables the transparent decompression
+                    mClient.setRequestProperty("Accept-Encoding", "gzip");
+                }
                 mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
+                mClient.setReadTimeout(READ_TIMEOUT_MS);
                 mClient.connect();
                 int responseCode = mClient.getResponseCode();
 
@@ -265,12 +584,20 @@ public class HttpURLConnectionClient implements DownloadClient {
                     handleDuplicateLinks();
                     responseCode = mClient.getResponseCode();
                 }
+                reusable = true;
 
                 mCallback.onResponse(new Headers());
 
+                if (mValidators != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    Log.d(TAG, "The resource didn't change");
+                    mCallback.onNotModified();
+                    return;
+                }
+
                 if (mResume && isPartialContentCode(responseCode)) {
                     justResumed = true;
-                    mTotalBytesRead = mDestination.length();
+                    mTotalBytesRead = mJournal != null ?
+                            mJournal.getCommittedBytes() : mDestination.length();
                     Log.d(TAG, "The server fulfilled the partial content request");
                 } else if (mResume || !isSuccessCode(responseCode)) {
                     Log.e(TAG, "The server replied with code " + responseCode);
@@ -278,40 +605,463 @@ public class HttpURLConnectionClient implements DownloadClient {
                     return;
                 }
 
-                try (
-                        InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
-                ) {
-                    mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
-                    byte[] b = new byte[8192];
-                    int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed(justResumed);
-                        calculateEta();
-                        justResumed = false; // otherwise we will never get speed and ETA again
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
-                        }
+                if (mJournal != null) {
+                    long length = getContentRangeLength(mClient.getHeaderField("Content-Range"));
+                    if (length != mJournal.getLength()) {
+                        Log.e(TAG, "The size of the file changed, can't resume");
+                        mCallback.onFailure(isInterrupted());
+                        return;
+                    }
+                    downloadRanges(mJournal, missingRanges, mSegments);
+                    return;
+                }
+
+                long length = -1;
+                if (segmented && isPartialContentCode(responseCode)) {
+                    length = getContentRangeLength(mClient.getHeaderField("Content-Range"));
+                } else if (segmented) {
+                    Log.d(TAG, "Partial content not supported, using a single connection");
+                    length = mClient.getContentLengthLong();
+                }
+                if (length > 0) {
+                    // Knowing the size, the file can be preallocated and written as a
+                    // single range if the server can't fulfil partial content requests
+                    int segments = isPartialContentCode(responseCode) ? mSegments : 1;
+                    DownloadJournal journal = DownloadJournal.create(mDestination, length);
+                    List<DownloadJournal.Range> ranges = new ArrayList<>();
+                    ranges.add(new DownloadJournal.Range(0, length));
+                    downloadRanges(journal, ranges, segments);
+                } else {
+                    downloadSingle(justResumed);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error downloading file", e);
+                reusable = false;
+                mCallback.onFailure(isInterrupted());
+            } finally {
+                if (reusable && !isInterrupted()) {
+                    release(mClient);
+                } else {
+                    mClient.disconnect();
+                }
+                if (mDigest != null) {
+                    try {
+                        mDigest.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not close digest", e);
                     }
+                }
+                if (mScoresChanged) {
+                    mMirrorSelector.save();
+                }
+            }
+        }
+
+        /**
+         * Compare the digest of the downloaded file with the expected one and notify
+         * the callback if they don't match
+         *
+         * @return true if the file can be considered valid
+         */
+        private boolean checkDigest(long length) throws IOException {
+            if (mDigest == null) {
+                return true;
+            }
+            String md5 = mDigest.finish(length);
+            if (md5.equalsIgnoreCase(mExpectedMd5)) {
+                Log.d(TAG, "Checksum verified");
+                return true;
+            }
+            Log.e(TAG, "Checksum mismatch, expected " + mExpectedMd5 + " but got " + md5);
+            DownloadJournal.delete(mDestination);
+            if (!mDestination.delete()) {
+                Log.e(TAG, "Could not delete " + mDestination);
+            }
+            mCallback.onDigestMismatch();
+            return false;
+        }
+
+        private void downloadSingle(boolean justResumed) throws IOException {
+            try (
+                    InputStream inputStream = mClient.getInputStream();
+                    FileOutputStream outputStream = new FileOutputStream(mDestination, mResume)
+            ) {
+                FileChannel channel = outputStream.getChannel();
+                mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
+                if (mExpectedMd5 != null) {
+                    mDigest = new StreamingDigest("MD5", mDestination);
+                    mDigest.markWritten(0, mTotalBytesRead);
+                }
+                TransferBuffer transferBuffer = new TransferBuffer();
+                ByteBuffer buffer;
+                long synced = mTotalBytesRead;
+                while (!isInterrupted() && (buffer = transferBuffer.fill(inputStream,
+                        Long.MAX_VALUE)).hasRemaining()) {
+                    int count = buffer.remaining();
+                    transferBuffer.write(channel, mTotalBytesRead);
+                    if (mTotalBytesRead + count - synced >= COMMIT_INTERVAL) {
+                        // Keep the amount of dirty data bounded
+                        channel.force(false);
+                        synced = mTotalBytesRead + count;
+                    }
+                    if (mDigest != null) {
+                        mDigest.onWritten(mTotalBytesRead, buffer);
+                    }
+                    mTotalBytesRead += count;
+                    calculateSpeed(justResumed);
+                    calculateEta();
+                    justResumed = false; // otherwise we will never get speed and ETA again
+                    transferBuffer.adapt(mSpeed);
                     if (mProgressListener != null) {
                         mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
                     }
+                    long delay = throttle(count);
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException e) {
+                            interrupt();
+                        }
+                    }
+                }
+                if (mProgressListener != null) {
+                    mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+                }
+                Log.d(TAG, "Transfer: " + transferBuffer);
 
-                    outputStream.flush();
+                if (isInterrupted()) {
+                    mCallback.onFailure(true);
+                } else if (checkDigest(mTotalBytesRead)) {
+                    mCallback.onSuccess();
+                }
+            }
+        }
 
-                    if (isInterrupted()) {
-                        mCallback.onFailure(true);
+        private void downloadRanges(DownloadJournal journal, List<DownloadJournal.Range> missing,
+                int segmentCount) throws IOException {
+            final URL url = mClient.getURL();
+            final List<DownloadJournal.Range> ranges = splitRanges(missing, segmentCount);
+            final List<SegmentThread> segments = new ArrayList<>(ranges.size());
+            boolean cancelled = false;
+            IOException error;
+
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                if (file.length() != journal.getLength()) {
+                    try {
+                        preallocate(file, journal.getLength());
+                    } catch (IOException e) {
+                        journal.delete();
+                        file.setLength(0);
+                        throw e;
+                    }
+                }
+                FileChannel channel = file.getChannel();
+                if (mExpectedMd5 != null) {
+                    mDigest = new StreamingDigest("MD5", mDestination);
+                    for (DownloadJournal.Range range : journal.getCommittedRanges()) {
+                        mDigest.markWritten(range.getStart(), range.getEnd());
+                    }
+                }
+                for (DownloadJournal.Range range : ranges) {
+                    // The first range is read from the connection we already opened
+                    HttpURLConnection connection = segments.isEmpty() ? mClient : null;
+                    segments.add(new SegmentThread(url, connection, channel, journal,
+                            range.getStart(), range.getEnd()));
+                }
+                Log.d(TAG, "Downloading " + ranges.size() + " ranges of " +
+                        journal.getLength() + " bytes");
+
+                mTotalBytes = journal.getLength();
+                mTotalBytesRead = journal.getCommittedBytes();
+                calculateSpeed(true);
+                synchronized (mSegmentLock) {
+                    mPendingSegments = segments.size();
+                }
+                for (SegmentThread segment : segments) {
+                    segment.start();
+                }
+
+                try {
+                    synchronized (mSegmentLock) {
+                        while (mPendingSegments > 0 && mSegmentError == null) {
+                            mSegmentLock.wait();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    cancelled = true;
+                }
+                for (SegmentThread segment : segments) {
+                    segment.abort();
+                }
+                for (SegmentThread segment : segments) {
+                    while (segment.isAlive()) {
+                        try {
+                            segment.join();
+                        } catch (InterruptedException e) {
+                            cancelled = true;
+                        }
+                    }
+                }
+                synchronized (mSegmentLock) {
+                    error = mSegmentError;
+                }
+
+                if (!cancelled && error == null) {
+                    if (journal.getMissingRanges().isEmpty()) {
+                        journal.delete();
                     } else {
-                        mCallback.onSuccess();
+                        error = new IOException("Some ranges were not downloaded");
                     }
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Error downloading file", e);
-                mCallback.onFailure(isInterrupted());
-            } finally {
-                mClient.disconnect();
+            }
+
+            if (mProgressListener != null) {
+                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+            }
+
+            if (cancelled || isInterrupted()) {
+                mCallback.onFailure(true);
+            } else if (error != null) {
+                throw error;
+            } else if (checkDigest(journal.getLength())) {
+                mCallback.onSuccess();
+            }
+        }
+
+        /**
+         * @return the current speed of each segment, or -1 if unknown
+         */
+        private long onSegmentProgress(int count) {
+            synchronized (mSegmentLock) {
+                mTotalBytesRead += count;
+                calculateSpeed(false);
+                calculateEta();
+                if (mProgressListener != null) {
+                    mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+                }
+                return mSpeed > 0 ? mSpeed / Math.max(mPendingSegments, 1) : -1;
+            }
+        }
+
+        private void onSegmentFinished(IOException error) {
+            synchronized (mSegmentLock) {
+                mPendingSegments--;
+                if (error != null && mSegmentError == null) {
+                    mSegmentError = error;
+                }
+                mSegmentLock.notifyAll();
+            }
+        }
+
+        private class SegmentThread extends Thread {
+
+            private URL mUrl;
+            private final FileChannel mChannel;
+            private final DownloadJournal mJournal;
+            private final long mEnd;
+            private volatile HttpURLConnection mConnection;
+            private volatile boolean mAborted;
+            private long mPosition;
+            private long mCommitted;
+            private final Object mPauseLock = new Object();
+
+            private SegmentThread(URL url, HttpURLConnection connection, FileChannel channel,
+                    DownloadJournal journal, long start, long end) {
+                mUrl = url;
+                mConnection = connection;
+                mChannel = channel;
+                mJournal = journal;
+                mPosition = start;
+                mCommitted = start;
+                mEnd = end;
+            }
+
+            private void commit() throws WriteException {
+                if (mPosition == mCommitted) {
+                    return;
+                }
+                try {
+                    mChannel.force(false);
+                    mJournal.commit(mCommitted, mPosition);
+                    mJournal.save();
+                } catch (IOException e) {
+                    throw new WriteException(e);
+                }
+                mCommitted = mPosition;
+            }
+
+            private void write(TransferBuffer transferBuffer, ByteBuffer buffer)
+                    throws WriteException {
+                try {
+                    transferBuffer.write(mChannel, mPosition);
+                    if (mDigest != null) {
+                        mDigest.onWritten(mPosition, buffer);
+                    }
+                } catch (IOException e) {
+                    throw new WriteException(e);
+                }
+            }
+
+            private void abort() {
+                mAborted = true;
+                HttpURLConnection connection = mConnection;
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                synchronized (mPauseLock) {
+                    mPauseLock.notifyAll();
+                }
+            }
+
+            /**
+             * Wait for the given time, unless the segment gets aborted. The thread isn't
+             * interrupted for that, it would close the shared file channel.
+             */
+            private void pause(long delay) {
+                final long deadline = SystemClock.elapsedRealtime() + delay;
+                synchronized (mPauseLock) {
+                    long left;
+                    while (!mAborted && (left = deadline - SystemClock.elapsedRealtime()) > 0) {
+                        try {
+                            mPauseLock.wait(left);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Read the range from the current connection
+             *
+             * @return the mirror to continue from if this one is too slow, otherwise null
+             */
+            private URL transfer() throws IOException {
+                TransferBuffer transferBuffer = new TransferBuffer();
+                long windowStart = SystemClock.elapsedRealtime();
+                long windowBytes = 0;
+                try (InputStream inputStream = mConnection.getInputStream()) {
+                    ByteBuffer buffer;
+                    while (!mAborted && mPosition < mEnd && (buffer = transferBuffer.fill(
+                            inputStream, mEnd - mPosition)).hasRemaining()) {
+                        int count = buffer.remaining();
+                        write(transferBuffer, buffer);
+                        mPosition += count;
+                        transferBuffer.adapt(onSegmentProgress(count));
+                        if (mPosition - mCommitted >= COMMIT_INTERVAL) {
+                            commit();
+                        }
+
+                        long delay = throttle(count);
+                        if (delay > 0) {
+                            pause(delay);
+                            // Don't blame the mirror for the time spent throttled
+                            windowStart += delay;
+                        }
+
+                        windowBytes += count;
+                        long elapsed = SystemClock.elapsedRealtime() - windowStart;
+                        if (elapsed >= SLOW_MIRROR_WINDOW_MS) {
+                            long speed = windowBytes * 1000 / elapsed;
+                            URL mirror = speed < SLOW_MIRROR_SPEED && mPosition < mEnd ?
+                                    onSlowMirror(mUrl, speed) : null;
+                            if (mirror != null) {
+                                Log.d(TAG, "Transfer of range ending at " + mEnd + " from " +
+                                        mUrl.getAuthority() + ": " + transferBuffer);
+                                return mirror;
+                            }
+                            windowStart += elapsed;
+                            windowBytes = 0;
+                        }
+                    }
+                }
+                Log.d(TAG, "Transfer of range ending at " + mEnd + ": " + transferBuffer);
+                return null;
+            }
+
+            @Override
+            public void run() {
+                IOException error = null;
+                int retries = 0;
+                try {
+                    while (!mAborted && mPosition < mEnd) {
+                        final long start = mPosition;
+                        URL mirror;
+                        try {
+                            if (mConnection == null) {
+                                HttpURLConnection connection =
+                                        (HttpURLConnection) mUrl.openConnection();
+                                connection.setReadTimeout(READ_TIMEOUT_MS);
+                                connection.setRequestProperty("Range",
+                                        "bytes=" + mPosition + "-" + (mEnd - 1));
+                                mConnection = connection;
+                                if (mAborted) {
+                                    return;
+                                }
+                                int responseCode = connection.getResponseCode();
+                                if (!isPartialContentCode(responseCode)) {
+                                    throw new IOException("Server replied with " +
+                                            responseCode + " to a range request");
+                                }
+                            }
+                            mirror = transfer();
+                            if (mirror == null) {
+                                if (!mAborted && mPosition < mEnd) {
+                                    throw new IOException(
+                                            "Connection closed before the end of the range");
+                                }
+                                break;
+                            }
+                            Log.d(TAG, "Moving range ending at " + mEnd + " from " +
+                                    mUrl.getAuthority() + " to " + mirror.getAuthority());
+                        } catch (WriteException e) {
+                            throw e;
+                        } catch (IOException e) {
+                            if (mAborted) {
+                                break;
+                            }
+                            final boolean progressed = mPosition > start;
+                            mirror = onMirrorFailed(mUrl, progressed);
+                            if (mirror == null) {
+                                throw e;
+                            }
+                            if (progressed) {
+                                retries = 0;
+                            }
+                            long delay = Math.min(RETRY_DELAY_MS << Math.min(retries, 5),
+                                    MAX_RETRY_DELAY_MS);
+                            retries++;
+                            Log.e(TAG, "Error downloading range ending at " + mEnd + " from " +
+                                    mUrl.getAuthority() + ", continuing from " + mPosition +
+                                    " with " + mirror.getAuthority() + " in " + delay + " ms", e);
+                            commit();
+                            pause(delay);
+                        }
+                        commit();
+                        mUrl = mirror;
+                        HttpURLConnection connection = mConnection;
+                        mConnection = null;
+                        if (connection != null) {
+                            connection.disconnect();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!mAborted) {
+                        Log.e(TAG, "Error downloading range ending at " + mEnd, e);
+                        error = e;
+                    }
+                } finally {
+                    // Keep what we got so far, even if the download failed
+                    try {
+                        commit();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not update the journal", e);
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                    onSegmentFinished(error);
+                }
             }
         }
     }
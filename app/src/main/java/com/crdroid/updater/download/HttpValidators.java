@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * ETag and Last-Modified validators of a cached response, used to make conditional
+ * requests. They are stored in a file next to the cached response.
+ */
+public class HttpValidators {
+
+    private static final String TAG = "HttpValidators";
+
+    private static final String FILE_EXT = ".validators";
+
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+
+    private final String mETag;
+    private final String mLastModified;
+
+    private HttpValidators(String eTag, String lastModified) {
+        mETag = eTag;
+        mLastModified = lastModified;
+    }
+
+    public static File getFile(File cached) {
+        return new File(cached.getPath() + FILE_EXT);
+    }
+
+    /**
+     * Get the validators of the given response
+     *
+     * @return the validators, or null if the response didn't include any
+     */
+    public static HttpValidators fromHeaders(DownloadClient.Headers headers) {
+        String eTag = headers.get("ETag");
+        String lastModified = headers.get("Last-Modified");
+        if (eTag == null && lastModified == null) {
+            return null;
+        }
+        return new HttpValidators(eTag, lastModified);
+    }
+
+    /**
+     * Read the validators of the given cached response
+     *
+     * @return the validators, or null if there are none or the cached response is gone
+     */
+    public static HttpValidators load(File cached) {
+        File file = getFile(cached);
+        if (!cached.exists() || !file.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            return null;
+        }
+        String eTag = properties.getProperty(KEY_ETAG);
+        String lastModified = properties.getProperty(KEY_LAST_MODIFIED);
+        if (eTag == null && lastModified == null) {
+            return null;
+        }
+        return new HttpValidators(eTag, lastModified);
+    }
+
+    /**
+     * Store the given validators next to the cached response, or remove the stored
+     * ones if validators is null
+     */
+    public static void save(File cached, HttpValidators validators) {
+        File file = getFile(cached);
+        if (validators == null) {
+            if (file.exists() && !file.delete()) {
+                Log.e(TAG, "Could not delete " + file);
+            }
+            return;
+        }
+        Properties properties = new Properties();
+        if (validators.mETag != null) {
+            properties.setProperty(KEY_ETAG, validators.mETag);
+        }
+        if (validators.mLastModified != null) {
+            properties.setProperty(KEY_LAST_MODIFIED, validators.mLastModified);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, null);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + file, e);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Could not write " + file);
+        }
+    }
+
+    String getETag() {
+        return mETag;
+    }
+
+    String getLastModified() {
+        return mLastModified;
+    }
+}
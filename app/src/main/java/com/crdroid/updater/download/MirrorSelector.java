@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses among the mirrors of a download. The first ones are probed in parallel
+ * with a small range request, and each server gets a score, the speed at which it
+ * would deliver a few MiB of data. Scores are kept across sessions in a file.
+ */
+public class MirrorSelector {
+
+    private static final String TAG = "MirrorSelector";
+
+    // Number of mirrors probed in parallel
+    private static final int PROBE_COUNT = 3;
+
+    private static final int PROBE_SIZE = 64 * 1024;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+
+    // Time left to the other probes once one of them completed
+    private static final long PROBE_GRACE_MS = 500;
+
+    // Amount of data used to weigh the time to first byte against the throughput
+    private static final long REFERENCE_SIZE = 4 * 1024 * 1024;
+
+    private final File mFile;
+    private final Properties mScores = new Properties();
+    private boolean mLoaded = false;
+
+    public MirrorSelector(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Sort the given mirrors from the most to the least promising. The first ones
+     * are probed, the others keep the score they got in previous sessions, if any.
+     * Mirrors without a score are kept last, in the given order.
+     *
+     * @param mirrors the mirrors, in order of preference of the server
+     */
+    List<URL> rank(List<URL> mirrors) {
+        List<URL> probed = mirrors.subList(0, Math.min(PROBE_COUNT, mirrors.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(probed.size());
+        CompletionService<Long> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Long>> futures = new ArrayList<>(probed.size());
+        for (URL url : probed) {
+            futures.add(completionService.submit(() -> probe(url)));
+        }
+
+        long deadline = SystemClock.elapsedRealtime() + PROBE_TIMEOUT_MS * 2;
+        try {
+            for (int i = 0; i < probed.size(); i++) {
+                long timeout = deadline - SystemClock.elapsedRealtime();
+                Future<Long> future = completionService.poll(timeout, TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    break;
+                }
+                try {
+                    if (future.get() > 0) {
+                        // We have a candidate, don't wait long for the slower ones
+                        deadline = Math.min(deadline,
+                                SystemClock.elapsedRealtime() + PROBE_GRACE_MS);
+                    }
+                } catch (ExecutionException e) {
+                    Log.d(TAG, "Probe failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int i = 0; i < probed.size(); i++) {
+            Future<Long> future = futures.get(i);
+            long speed = 0;
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    speed = future.get();
+                } catch (ExecutionException | InterruptedException ignored) {
+                }
+            }
+            Log.d(TAG, getKey(probed.get(i)) + " probed at " + speed + " B/s");
+            recordSpeed(probed.get(i), speed);
+        }
+
+        List<URL> ranked = new ArrayList<>(mirrors);
+        // The sort is stable, mirrors with the same score keep the order of the server
+        ranked.sort((u1, u2) -> Long.compare(getScore(u2), getScore(u1)));
+        save();
+        return ranked;
+    }
+
+    /**
+     * @return the score of the server of the given mirror in bytes per second, or -1
+     *         if it's unknown
+     */
+    synchronized long getScore(URL url) {
+        load();
+        String score = mScores.getProperty(getKey(url));
+        if (score != null) {
+            try {
+                return Long.parseLong(score);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Update the score of the server of the given mirror with the speed observed
+     */
+    synchronized void recordSpeed(URL url, long bytesPerSecond) {
+        long score = getScore(url);
+        if (score >= 0) {
+            // Same moving average as the download speed
+            score = (score * 3 + bytesPerSecond) / 4;
+        } else {
+            score = bytesPerSecond;
+        }
+        mScores.setProperty(getKey(url), Long.toString(score));
+    }
+
+    private static String getKey(URL url) {
+        return url.getPort() != -1 ? url.getHost() + ":" + url.getPort() : url.getHost();
+    }
+
+    /**
+     * @return the estimated speed of the mirror in bytes per second
+     */
+    private static long probe(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+        connection.setReadTimeout(PROBE_TIMEOUT_MS);
+        connection.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE - 1));
+        boolean complete = false;
+        try {
+            final long start = SystemClock.elapsedRealtime();
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK &&
+                    responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Server replied with " + responseCode);
+            }
+            try (InputStream inputStream = connection.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                long total = inputStream.read(buffer);
+                if (total < 0) {
+                    throw new IOException("Empty response");
+                }
+                final long firstByte = SystemClock.elapsedRealtime();
+                int read;
+                while (total < PROBE_SIZE && (read = inputStream.read(buffer)) >= 0) {
+                    total += read;
+                }
+                final long end = SystemClock.elapsedRealtime();
+                // The download will likely reuse the connection of the chosen mirror
+                complete = responseCode == HttpURLConnection.HTTP_PARTIAL &&
+                        total == PROBE_SIZE;
+                long throughput = total * 1000 / Math.max(end - firstByte, 1);
+                long millis = firstByte - start + REFERENCE_SIZE * 1000 / Math.max(throughput, 1);
+                return REFERENCE_SIZE * 1000 / Math.max(millis, 1);
+            }
+        } finally {
+            if (!complete) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        try (InputStream in = new FileInputStream(mFile)) {
+            mScores.load(in);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + mFile, e);
+        }
+    }
+
+    synchronized void save() {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            mScores.store(out, null);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + mFile, e);
+            return;
+        }
+        if (!tmp.renameTo(mFile)) {
+            Log.e(TAG, "Could not write " + mFile);
+        }
+    }
+}
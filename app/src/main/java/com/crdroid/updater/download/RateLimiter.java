@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.download;
+
+import android.os.SystemClock;
+
+/**
+ * Token bucket limiting the speed of the downloads sharing it. Transfers take what
+ * they read from the bucket, and pause if that leaves it in debt.
+ */
+public class RateLimiter {
+
+    // Data that can be read in a burst after an idle period, as time at the current rate
+    private static final long BURST_MS = 250;
+
+    private long mRate = 0;
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     * @param bytesPerSecond the maximum speed, 0 to disable the limit
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        bytesPerSecond = Math.max(bytesPerSecond, 0);
+        if (bytesPerSecond == mRate) {
+            return;
+        }
+        mRate = bytesPerSecond;
+        mTokens = 0;
+        mLastRefill = SystemClock.elapsedRealtime();
+    }
+
+    public synchronized long getRate() {
+        return mRate;
+    }
+
+    /**
+     * Take the given amount of bytes from the bucket
+     *
+     * @return the time in milliseconds to wait before reading more
+     */
+    synchronized long consume(int bytes) {
+        if (mRate <= 0) {
+            return 0;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        final double burst = mRate * BURST_MS / 1000.0;
+        mTokens = Math.min(burst, mTokens + (now - mLastRefill) * mRate / 1000.0);
+        mLastRefill = now;
+        mTokens -= bytes;
+        return mTokens >= 0 ? 0 : (long) Math.ceil(-mTokens * 1000 / mRate);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.download;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Digest of a file computed while it's being written. Data written in order is hashed
+ * from memory, data written ahead of the hashed position is read back from the file
+ * as soon as the gap before it is filled. The reading is done by a thread of its own,
+ * the writers only record what they wrote and are never held by it.
+ */
+class StreamingDigest implements Closeable {
+
+    private static final String TAG = "StreamingDigest";
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            runnable -> new Thread(runnable, TAG));
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final MessageDigest mDigest;
+    private final File mFile;
+    private RandomAccessFile mReader;
+    private ByteBuffer mReadBuffer;
+
+    // Everything before this offset was hashed
+    private long mPosition;
+    // Ranges written after mPosition, keyed by start offset
+    private final TreeMap<Long, Long> mWritten = new TreeMap<>();
+    // Whether the file is being read back, the digest then belongs to the reader
+    private boolean mReading;
+    private IOException mError;
+    private boolean mClosed;
+
+    StreamingDigest(String algorithm, File file) throws IOException {
+        try {
+            mDigest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        mFile = file;
+    }
+
+    /**
+     * Notify that the given data was written to the file at the given offset
+     */
+    synchronized void onWritten(long position, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (!mReading && position == mPosition) {
+            checkError();
+            mDigest.update(data.duplicate());
+            mPosition += length;
+            scheduleCatchUp();
+        } else {
+            markWritten(position, position + length);
+        }
+    }
+
+    /**
+     * Notify that the given range is already in the file. It will be read back
+     * once all the data before it is hashed.
+     */
+    synchronized void markWritten(long start, long end) throws IOException {
+        checkError();
+        if (end <= mPosition) {
+            return;
+        }
+        Map.Entry<Long, Long> previous = mWritten.floorEntry(start);
+        if (previous != null && previous.getValue() >= start) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = mWritten.ceilingEntry(start)) != null && next.getKey() <= end) {
+            mWritten.remove(next.getKey());
+            end = Math.max(end, next.getValue());
+        }
+        mWritten.put(start, end);
+        scheduleCatchUp();
+    }
+
+    /**
+     * Hash what's left of the file up to the given length
+     *
+     * @return the digest as lowercase hex string
+     */
+    synchronized String finish(long length) throws IOException {
+        try {
+            while (mReading) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing " + mFile);
+        }
+        checkError();
+        if (mPosition < length) {
+            hashFromFile(length);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : mDigest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mClosed = true;
+        // Otherwise closed by the reader once it stops
+        if (!mReading) {
+            closeReader();
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    private void scheduleCatchUp() {
+        if (mReading || mClosed) {
+            return;
+        }
+        Map.Entry<Long, Long> first = mWritten.firstEntry();
+        if (first != null && first.getKey() <= mPosition) {
+            mReading = true;
+            sExecutor.execute(this::catchUp);
+        }
+    }
+
+    private void catchUp() {
+        try {
+            long end;
+            while ((end = nextReadableEnd()) >= 0) {
+                hashFromFile(end);
+            }
+        } catch (Throwable t) {
+            // Whatever happened, the writers and finish() must not wait for the reader
+            synchronized (this) {
+                mError = t instanceof IOException ? (IOException) t : new IOException(t);
+                stopReading();
+            }
+        }
+    }
+
+    /**
+     * @return the end of the data that can be read back next, -1 if there's none
+     */
+    private synchronized long nextReadableEnd() {
+        Map.Entry<Long, Long> first;
+        while (!mClosed && (first = mWritten.firstEntry()) != null &&
+                first.getKey() <= mPosition) {
+            mWritten.remove(first.getKey());
+            if (first.getValue() > mPosition) {
+                return first.getValue();
+            }
+        }
+        stopReading();
+        return -1;
+    }
+
+    private void stopReading() {
+        mReading = false;
+        if (mClosed) {
+            try {
+                closeReader();
+            } catch (IOException ignored) {
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Read the file from the hashed position up to the given offset. Only the
+     * updates of the digest are done holding the lock.
+     */
+    private void hashFromFile(long end) throws IOException {
+        FileChannel channel;
+        long position;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            if (mReader == null) {
+                mReader = new RandomAccessFile(mFile, "r");
+                mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+            channel = mReader.getChannel();
+            position = mPosition;
+        }
+        while (position < end) {
+            mReadBuffer.clear();
+            mReadBuffer.limit((int) Math.min(mReadBuffer.capacity(), end - position));
+            int read = channel.read(mReadBuffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + mFile);
+            }
+            mReadBuffer.flip();
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mDigest.update(mReadBuffer);
+                mPosition += read;
+                position = mPosition;
+            }
+        }
+    }
+
+    private void closeReader() throws IOException {
+        if (mReader != null) {
+            mReader.close();
+            mReader = null;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Buffer moving data from a connection to the destination file. Its size follows the
+ * observed throughput, so that fast connections are written with fewer and larger
+ * writes while slow ones still report progress often.
+ */
+class TransferBuffer {
+
+    static final int MIN_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 1024 * 1024;
+
+    // The buffer should hold about this much time worth of data
+    private static final long TARGET_FILL_MS = 100;
+
+    private byte[] mArray;
+    private ByteBuffer mBuffer;
+
+    private long mBytes;
+    private long mReads;
+    private long mWrites;
+    private final long mStartMillis = System.currentTimeMillis();
+
+    TransferBuffer() {
+        allocate(MIN_SIZE);
+    }
+
+    private void allocate(int size) {
+        // InputStream can only read into arrays, a direct buffer would cost an extra copy
+        mArray = new byte[size];
+        mBuffer = ByteBuffer.wrap(mArray);
+    }
+
+    /**
+     * Resize the buffer according to the given throughput
+     *
+     * @param bytesPerSecond the current speed, or a negative value if unknown
+     */
+    void adapt(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long target = bytesPerSecond * TARGET_FILL_MS / 1000;
+        int size = MIN_SIZE;
+        while (size < target && size < MAX_SIZE) {
+            size <<= 1;
+        }
+        if (size != mArray.length) {
+            allocate(size);
+        }
+    }
+
+    /**
+     * Read from the given stream what is available without blocking further, after
+     * having waited for at least one byte
+     *
+     * @param limit maximum number of bytes to read
+     * @return the data read, empty if the end of the stream was reached
+     */
+    ByteBuffer fill(InputStream inputStream, long limit) throws IOException {
+        int max = (int) Math.min(mArray.length, limit);
+        int count = 0;
+        while (count < max) {
+            int read = inputStream.read(mArray, count, max - count);
+            mReads++;
+            if (read < 0) {
+                break;
+            }
+            count += read;
+            if (inputStream.available() <= 0) {
+                break;
+            }
+        }
+        mBuffer.clear();
+        mBuffer.limit(count);
+        mBytes += count;
+        return mBuffer;
+    }
+
+    /**
+     * Write the data read by the last fill() at the given position of the channel.
+     * The buffer is rewound afterwards, so that the data can be read again.
+     */
+    void write(FileChannel channel, long position) throws IOException {
+        while (mBuffer.hasRemaining()) {
+            channel.write(mBuffer, position + mBuffer.position());
+            mWrites++;
+        }
+        mBuffer.rewind();
+    }
+
+    @Override
+    public String toString() {
+        double mb = Math.max(mBytes, 1) / (1024.0 * 1024.0);
+        long millis = Math.max(System.currentTimeMillis() - mStartMillis, 1);
+        return String.format(Locale.ROOT,
+                "%d bytes at %d B/s, %.1f reads/MB, %.1f writes/MB, buffer %d KiB",
+                mBytes, mBytes * 1000 / millis, mReads / mb, mWrites / mb,
+                mArray.length / 1024);
+    }
+}
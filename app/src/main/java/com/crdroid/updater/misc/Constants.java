@@ -35,6 +35,9 @@ public final class Constants {
     public static final String PREF_METERED_NETWORK_WARNING = "pref_metered_network_warning";
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
+    public static final String PREF_SPEED_LIMIT_METERED = "speed_limit_metered";
+    public static final String PREF_SPEED_LIMIT_UNMETERED = "speed_limit_unmetered";
+    public static final String PREF_SPEED_LIMIT_ETHERNET = "speed_limit_ethernet";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
 
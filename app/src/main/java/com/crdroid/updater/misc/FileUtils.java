@@ -18,16 +18,21 @@ package com.crdroid.updater.misc;
 import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.ParcelFileDescriptor;
 import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
@@ -36,6 +41,11 @@ public class FileUtils {
 
     private static final String TAG = "FileUtils";
 
+    // Bytes copied by the kernel between two progress updates
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+
     public interface ProgressCallBack {
         void update(int progress);
     }
@@ -100,24 +110,87 @@ public class FileUtils {
         }
     }
 
-    public static void copyFile(ContentResolver cr, File sourceFile, Uri destUri,
+    /**
+     * Copy the content of the given descriptor, e.g. of a picked document, to the given
+     * file. Regular files are copied by the kernel, without going through user space,
+     * to a destination preallocated in one go. Other sources, such as pipes, are
+     * streamed and don't report any progress.
+     */
+    public static void copyFile(FileDescriptor source, File destFile,
                                 ProgressCallBack progressCallBack) throws IOException {
-        try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
-             ParcelFileDescriptor pfd = cr.openFileDescriptor(destUri, "w");
-             FileChannel destChannel = new FileOutputStream(pfd.getFileDescriptor()).getChannel()) {
-            if (progressCallBack != null) {
-                ReadableByteChannel readableByteChannel = new CallbackByteChannel(sourceChannel,
-                        sourceFile.length(), progressCallBack);
-                destChannel.transferFrom(readableByteChannel, 0, sourceChannel.size());
-            } else {
-                destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
+        // Not closed, the descriptor belongs to the caller
+        FileChannel sourceChannel = new FileInputStream(source).getChannel();
+        try (RandomAccessFile dest = new RandomAccessFile(destFile, "rw")) {
+            dest.setLength(0);
+            FileChannel destChannel = dest.getChannel();
+            long size = getRegularFileSize(source);
+            if (size < 0) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+                while (sourceChannel.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        destChannel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                return;
+            }
+
+            preallocate(dest, size);
+            long position = 0;
+            int lastProgress = -1;
+            while (position < size) {
+                long count = Math.min(TRANSFER_CHUNK_SIZE, size - position);
+                long transferred = sourceChannel.transferTo(position, count, destChannel);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of the source at " + position);
+                }
+                position += transferred;
+                int progress = Math.round(position * 100.f / size);
+                if (progressCallBack != null && progress != lastProgress) {
+                    progressCallBack.update(progress);
+                    lastProgress = progress;
+                }
             }
         } catch (IOException e) {
             Log.e(TAG, "Could not copy file", e);
+            if (destFile.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                destFile.delete();
+            }
             throw e;
         }
     }
 
+    /**
+     * @return the size of the given file, or -1 if it's not a regular file
+     */
+    private static long getRegularFileSize(FileDescriptor fd) {
+        try {
+            StructStat stat = Os.fstat(fd);
+            return OsConstants.S_ISREG(stat.st_mode) ? stat.st_size : -1;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Could not get the size of the source", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Reserve the blocks of the given file, so that running out of space is detected
+     * before anything is written
+     */
+    private static void preallocate(RandomAccessFile file, long length) throws IOException {
+        try {
+            Os.posix_fallocate(file.getFD(), 0, length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("Not enough space for " + length + " bytes", e);
+            }
+            // Not supported by the file system, the blocks are allocated while copying
+            Log.w(TAG, "Could not preallocate the file", e);
+        }
+    }
+
     public static String queryName(@NonNull ContentResolver resolver, Uri uri) {
         try (Cursor returnCursor = resolver.query(uri, null, null, null, null)) {
             returnCursor.moveToFirst();
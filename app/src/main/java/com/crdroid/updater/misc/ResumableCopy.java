@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.misc;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Copies a file to a descriptor, e.g. of a document picked by the user, in bounded
+ * slices. The offset reached is recorded in a checkpoint once the data before it is
+ * synced, and a copy of the same file to the same destination continues from there.
+ * The destination is then read back and its digest compared with the one of the
+ * source.
+ */
+public class ResumableCopy {
+
+    private static final String TAG = "ResumableCopy";
+
+    private static final int SLICE_SIZE = 4 * 1024 * 1024;
+
+    // The destination is synced and the offset recorded after this many bytes
+    private static final long CHECKPOINT_INTERVAL = 64 * 1024 * 1024;
+
+    private static final String KEY_SOURCE = "source";
+    private static final String KEY_SOURCE_SIZE = "source_size";
+    private static final String KEY_SOURCE_MTIME = "source_mtime";
+    private static final String KEY_DESTINATION = "destination";
+    private static final String KEY_OFFSET = "offset";
+
+    public interface ProgressListener {
+        void update(long bytesCopied, long total, long speed, long eta);
+    }
+
+    private final File mSource;
+    private final FileDescriptor mDestination;
+    private final boolean mReadable;
+    private final String mDestinationKey;
+    private final File mCheckpoint;
+    private final ProgressListener mProgressListener;
+
+    private volatile boolean mCancelled = false;
+
+    private long mCopied;
+    private long mTotal;
+    private long mSpeed;
+    private long mEta;
+    private long mLastMillis;
+    private long mCurSampleBytes;
+
+    /**
+     * @param readable whether the destination was opened for reading too, it's only
+     *                 verified if it was
+     * @param destinationKey identifies the destination across sessions, e.g. its URI
+     * @param checkpoint file recording the progress of the copy
+     */
+    public ResumableCopy(File source, FileDescriptor destination, boolean readable,
+            String destinationKey, File checkpoint, ProgressListener progressListener) {
+        mSource = source;
+        mDestination = destination;
+        mReadable = readable;
+        mDestinationKey = destinationKey;
+        mCheckpoint = checkpoint;
+        mProgressListener = progressListener;
+    }
+
+    /**
+     * Stop the copy after the current slice, keeping its progress for a later one
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Copy the source, or what's left of it
+     *
+     * @return false if the copy was cancelled
+     * @throws IOException if the copy failed or the destination doesn't match the source
+     */
+    public boolean run() throws IOException {
+        mTotal = mSource.length();
+        // Pipes can't be resumed, nor read back
+        final boolean seekable = isRegularFile(mDestination);
+        long offset = seekable ? loadCheckpoint() : 0;
+        MessageDigest sourceDigest = newDigest();
+
+        try (FileInputStream inputStream = new FileInputStream(mSource)) {
+            FileChannel sourceChannel = inputStream.getChannel();
+            // Not closed, the descriptor belongs to the caller
+            FileChannel destChannel = new FileOutputStream(mDestination).getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SLICE_SIZE);
+            if (offset > 0) {
+                Log.d(TAG, "Resuming the copy of " + mSource + " at " + offset);
+                // The source is local, hashing what was copied is quick
+                readRange(sourceChannel, buffer, 0, offset, sourceDigest);
+                destChannel.position(offset);
+            } else if (seekable) {
+                destChannel.truncate(0);
+                destChannel.position(0);
+            }
+
+            mCopied = offset;
+            calculateSpeed(true);
+            long checkpointed = offset;
+            try {
+                while (mCopied < mTotal) {
+                    if (mCancelled) {
+                        Log.d(TAG, "Copy cancelled at " + mCopied);
+                        if (seekable && mCopied > checkpointed) {
+                            sync();
+                            saveCheckpoint(mCopied);
+                        }
+                        return false;
+                    }
+                    int count = (int) Math.min(SLICE_SIZE, mTotal - mCopied);
+                    readRange(sourceChannel, buffer, mCopied, count, sourceDigest);
+                    while (buffer.hasRemaining()) {
+                        destChannel.write(buffer);
+                    }
+                    mCopied += count;
+                    if (seekable && mCopied - checkpointed >= CHECKPOINT_INTERVAL) {
+                        sync();
+                        saveCheckpoint(mCopied);
+                        checkpointed = mCopied;
+                    }
+                    calculateSpeed(false);
+                    calculateEta();
+                    mProgressListener.update(mCopied, mTotal, mSpeed, mEta);
+                }
+            } catch (IOException e) {
+                // Keep the data written since the last checkpoint, if it made it to disk
+                if (seekable && mCopied > checkpointed) {
+                    try {
+                        sync();
+                        saveCheckpoint(mCopied);
+                    } catch (IOException ignored) {
+                    }
+                }
+                throw e;
+            }
+            sync();
+
+            if (seekable && mReadable) {
+                verifyDestination(buffer, toHex(sourceDigest.digest()));
+            } else {
+                Log.w(TAG, "The destination can't be read back, not verified");
+            }
+            deleteCheckpoint();
+            return true;
+        }
+    }
+
+    private void verifyDestination(ByteBuffer buffer, String expected) throws IOException {
+        try {
+            // Read the data from the storage rather than from the page cache
+            Os.posix_fadvise(mDestination, 0, 0, OsConstants.POSIX_FADV_DONTNEED);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Could not drop the cached data of the destination", e);
+        }
+        MessageDigest destDigest = newDigest();
+        // Not closed, the descriptor belongs to the caller
+        FileChannel channel = new FileInputStream(mDestination).getChannel();
+        if (channel.size() != mTotal) {
+            deleteCheckpoint();
+            throw new IOException("The destination has " + channel.size() + " bytes, expected " +
+                    mTotal);
+        }
+        readRange(channel, buffer, 0, mTotal, destDigest);
+        String actual = toHex(destDigest.digest());
+        if (!actual.equals(expected)) {
+            deleteCheckpoint();
+            throw new IOException("Digest mismatch, expected " + expected + " but got " + actual);
+        }
+        Log.d(TAG, "Destination verified");
+    }
+
+    /**
+     * Read the given range through the buffer, updating the digest with it. The buffer
+     * is left flipped with the last part of the range, all of it if it fits.
+     */
+    private static void readRange(FileChannel channel, ByteBuffer buffer, long start,
+            long length, MessageDigest digest) throws IOException {
+        long position = start;
+        final long end = start + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file at " +
+                            (position + buffer.position()));
+                }
+            }
+            buffer.flip();
+            digest.update(buffer.duplicate());
+            position += buffer.limit();
+        }
+    }
+
+    private void sync() throws IOException {
+        try {
+            Os.fdatasync(mDestination);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EINVAL && e.errno != OsConstants.EROFS) {
+                throw new IOException("Could not sync the destination", e);
+            }
+            // Not supported by the file system, nothing we can do
+        }
+    }
+
+    private void calculateSpeed(boolean justResumed) {
+        final long millis = SystemClock.elapsedRealtime();
+        if (justResumed) {
+            // Start over, the time elapsed since the previous copy isn't relevant
+            mLastMillis = millis;
+            mSpeed = -1;
+            mCurSampleBytes = mCopied;
+            return;
+        }
+        final long delta = millis - mLastMillis;
+        if (delta > 500) {
+            final long curSpeed = ((mCopied - mCurSampleBytes) * 1000) / delta;
+            if (mSpeed == -1) {
+                mSpeed = curSpeed;
+            } else {
+                mSpeed = ((mSpeed * 3) + curSpeed) / 4;
+            }
+            mLastMillis = millis;
+            mCurSampleBytes = mCopied;
+        }
+    }
+
+    private void calculateEta() {
+        if (mSpeed > 0) {
+            mEta = (mTotal - mCopied) / mSpeed;
+        }
+    }
+
+    /**
+     * @return the offset to continue from, 0 if there's no matching checkpoint
+     */
+    private long loadCheckpoint() {
+        if (!mCheckpoint.exists()) {
+            return 0;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(mCheckpoint)) {
+            properties.load(in);
+            long offset = Long.parseLong(properties.getProperty(KEY_OFFSET, "0"));
+            long destSize = Os.fstat(mDestination).st_size;
+            if (mSource.getAbsolutePath().equals(properties.getProperty(KEY_SOURCE)) &&
+                    String.valueOf(mTotal).equals(properties.getProperty(KEY_SOURCE_SIZE)) &&
+                    String.valueOf(mSource.lastModified()).equals(
+                            properties.getProperty(KEY_SOURCE_MTIME)) &&
+                    mDestinationKey.equals(properties.getProperty(KEY_DESTINATION)) &&
+                    offset <= mTotal && offset <= destSize) {
+                return offset;
+            }
+        } catch (IOException | NumberFormatException | ErrnoException e) {
+            Log.e(TAG, "Could not read " + mCheckpoint, e);
+        }
+        deleteCheckpoint();
+        return 0;
+    }
+
+    private void saveCheckpoint(long offset) {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_SOURCE, mSource.getAbsolutePath());
+        properties.setProperty(KEY_SOURCE_SIZE, String.valueOf(mTotal));
+        properties.setProperty(KEY_SOURCE_MTIME, String.valueOf(mSource.lastModified()));
+        properties.setProperty(KEY_DESTINATION, mDestinationKey);
+        properties.setProperty(KEY_OFFSET, String.valueOf(offset));
+        File tmp = new File(mCheckpoint.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, null);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + mCheckpoint, e);
+            return;
+        }
+        if (!tmp.renameTo(mCheckpoint)) {
+            Log.e(TAG, "Could not write " + mCheckpoint);
+        }
+    }
+
+    private void deleteCheckpoint() {
+        if (mCheckpoint.exists() && !mCheckpoint.delete()) {
+            Log.e(TAG, "Could not delete " + mCheckpoint);
+        }
+    }
+
+    private static boolean isRegularFile(FileDescriptor fd) {
+        try {
+            return OsConstants.S_ISREG(Os.fstat(fd).st_mode);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Could not get the type of the destination", e);
+            return false;
+        }
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
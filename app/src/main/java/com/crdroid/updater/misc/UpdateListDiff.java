@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.misc;
+
+import com.crdroid.updater.model.UpdateInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Changes between the last known updates list and a new one
+ */
+public class UpdateListDiff {
+
+    private final List<UpdateInfo> mUpdates;
+    private final List<UpdateInfo> mAdded = new ArrayList<>();
+    private final List<UpdateInfo> mChanged = new ArrayList<>();
+    private final List<String> mRemoved = new ArrayList<>();
+    private final Set<String> mDownloadIds = new HashSet<>();
+    private final Set<String> mModifiedIds = new HashSet<>();
+
+    UpdateListDiff(List<UpdateInfo> updates) {
+        mUpdates = Collections.unmodifiableList(updates);
+        for (UpdateInfo update : updates) {
+            mDownloadIds.add(update.getDownloadId());
+        }
+    }
+
+    void addAdded(UpdateInfo update) {
+        mAdded.add(update);
+        mModifiedIds.add(update.getDownloadId());
+    }
+
+    void addChanged(UpdateInfo update) {
+        mChanged.add(update);
+        mModifiedIds.add(update.getDownloadId());
+    }
+
+    void addRemoved(String downloadId) {
+        mRemoved.add(downloadId);
+    }
+
+    /**
+     * @return all the updates of the new list
+     */
+    public List<UpdateInfo> getUpdates() {
+        return mUpdates;
+    }
+
+    public List<UpdateInfo> getAdded() {
+        return Collections.unmodifiableList(mAdded);
+    }
+
+    public List<UpdateInfo> getChanged() {
+        return Collections.unmodifiableList(mChanged);
+    }
+
+    public List<String> getRemoved() {
+        return Collections.unmodifiableList(mRemoved);
+    }
+
+    /**
+     * @return the download IDs of all the updates of the new list
+     */
+    public Set<String> getDownloadIds() {
+        return Collections.unmodifiableSet(mDownloadIds);
+    }
+
+    /**
+     * @return true if the given update was added or changed
+     */
+    public boolean isModified(String downloadId) {
+        return mModifiedIds.contains(downloadId);
+    }
+
+    public boolean hasNewUpdates() {
+        return !mAdded.isEmpty();
+    }
+
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mChanged.isEmpty() && mRemoved.isEmpty();
+    }
+}
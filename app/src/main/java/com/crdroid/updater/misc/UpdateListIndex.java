@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.misc;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONException;
+import com.crdroid.updater.model.UpdateInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact copy of the cached updates list, holding only what is needed to tell
+ * what changed in a new list without parsing the cached one again.
+ */
+public class UpdateListIndex {
+
+    private static final String TAG = "UpdateListIndex";
+
+    private static final String FILE_EXT = ".idx";
+
+    private static final int MAGIC = 0x55444c49;
+    private static final int VERSION = 1;
+
+    private static final class Entry {
+        private final long mTimestamp;
+        private final long mSize;
+        private final String mDownloadUrl;
+
+        private Entry(long timestamp, long size, String downloadUrl) {
+            mTimestamp = timestamp;
+            mSize = size;
+            mDownloadUrl = downloadUrl;
+        }
+
+        private boolean matches(UpdateInfo update) {
+            return mTimestamp == update.getTimestamp() && mSize == update.getFileSize() &&
+                    TextUtils.equals(mDownloadUrl, update.getDownloadUrl());
+        }
+    }
+
+    // Size and mtime of the list the index was built from
+    private final long mListLength;
+    private final long mListLastModified;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private UpdateListIndex(long listLength, long listLastModified) {
+        mListLength = listLength;
+        mListLastModified = listLastModified;
+    }
+
+    public static File getFile(File list) {
+        return new File(list.getPath() + FILE_EXT);
+    }
+
+    /**
+     * Get the index of the given list. If the index is missing or outdated, it's
+     * rebuilt from the list.
+     *
+     * @param list the cached updates list
+     * @return the index, or null if the list doesn't exist or can't be parsed
+     */
+    public static UpdateListIndex load(File list) {
+        if (!list.exists()) {
+            return null;
+        }
+        UpdateListIndex index = read(getFile(list));
+        if (index != null && index.mListLength == list.length() &&
+                index.mListLastModified == list.lastModified()) {
+            return index;
+        }
+        Log.d(TAG, "Rebuilding the index of " + list);
+        try {
+            return create(list, Utils.parseJson(list, true));
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not parse " + list, e);
+            return null;
+        }
+    }
+
+    /**
+     * Create and save the index of the given list
+     *
+     * @param list the cached updates list, already at its final location
+     * @param updates the updates parsed from the list
+     */
+    public static UpdateListIndex create(File list, List<UpdateInfo> updates) {
+        UpdateListIndex index = new UpdateListIndex(list.length(), list.lastModified());
+        for (UpdateInfo update : updates) {
+            index.mEntries.put(update.getDownloadId(), new Entry(update.getTimestamp(),
+                    update.getFileSize(), update.getDownloadUrl()));
+        }
+        try {
+            index.save(getFile(list));
+        } catch (IOException e) {
+            // Not fatal, it will be rebuilt next time
+            Log.e(TAG, "Could not save the index of " + list, e);
+        }
+        return index;
+    }
+
+    /**
+     * Compare a new list with the one of the given index
+     *
+     * @param previous the index of the last list, or null if there's none
+     * @param updates the updates parsed from the new list
+     */
+    public static UpdateListDiff diff(UpdateListIndex previous, List<UpdateInfo> updates) {
+        UpdateListDiff diff = new UpdateListDiff(updates);
+        for (UpdateInfo update : updates) {
+            Entry entry = previous != null ? previous.mEntries.get(update.getDownloadId()) : null;
+            if (entry == null) {
+                diff.addAdded(update);
+            } else if (!entry.matches(update)) {
+                diff.addChanged(update);
+            }
+        }
+        if (previous != null) {
+            for (String downloadId : previous.mEntries.keySet()) {
+                if (!diff.getDownloadIds().contains(downloadId)) {
+                    diff.addRemoved(downloadId);
+                }
+            }
+        }
+        return diff;
+    }
+
+    private static UpdateListIndex read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown index format");
+            }
+            UpdateListIndex index = new UpdateListIndex(in.readLong(), in.readLong());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String downloadId = in.readUTF();
+                long timestamp = in.readLong();
+                long size = in.readLong();
+                String downloadUrl = in.readUTF();
+                index.mEntries.put(downloadId, new Entry(timestamp, size, downloadUrl));
+            }
+            return index;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            return null;
+        }
+    }
+
+    private void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mListLength);
+            out.writeLong(mListLastModified);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().mTimestamp);
+                out.writeLong(entry.getValue().mSize);
+                out.writeUTF(entry.getValue().mDownloadUrl);
+            }
+            out.flush();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not write " + file);
+        }
+    }
+}
@@ -27,33 +27,33 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.preference.PreferenceManager;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import com.crdroid.updater.R;
 import com.crdroid.updater.UpdatesDbHelper;
 import com.crdroid.updater.controller.UpdaterService;
+import com.crdroid.updater.download.DownloadJournal;
 import com.crdroid.updater.model.Update;
 import com.crdroid.updater.model.UpdateBaseInfo;
 import com.crdroid.updater.model.UpdateInfo;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.GZIPInputStream;
 
 public class Utils {
 
@@ -92,36 +92,156 @@ public class Utils {
         return new File(context.getCacheDir(), "updates.json");
     }
 
+    private static final class MaintainerInfo {
+        String maintainer;
+        String buildType;
+        String forum;
+        String telegram;
+        String gapps;
+        String firmware;
+        String modem;
+        String bootloader;
+        String recovery;
+        String paypal;
+
+        boolean isComplete() {
+            return maintainer != null && buildType != null && forum != null &&
+                    telegram != null && gapps != null && firmware != null && modem != null &&
+                    bootloader != null && recovery != null && paypal != null;
+        }
+    }
+
     // This should really return an UpdateBaseInfo object, but currently this only
     // used to initialize UpdateInfo objects
-    private static UpdateInfo parseJsonUpdate(JSONObject object) throws JSONException {
+    private static UpdateInfo parseJsonUpdate(JsonReader reader, boolean compatibleOnly,
+            MaintainerInfo info) throws IOException, JSONException {
+        Long timestamp = null;
+        Long size = null;
+        String name = null;
+        String downloadId = null;
+        String downloadUrl = null;
+        String version = null;
+        // Once the update is known to be incompatible, its own fields are skipped
+        boolean skip = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "timestamp":
+                    timestamp = nextLong(reader);
+                    skip = compatibleOnly && timestamp != null && !isCompatible(timestamp);
+                    break;
+                case "filename":
+                    name = nextString(reader, skip);
+                    break;
+                case "md5":
+                    downloadId = nextString(reader, skip);
+                    break;
+                case "size":
+                    size = skip ? null : nextLong(reader);
+                    break;
+                case "download":
+                    downloadUrl = nextString(reader, skip);
+                    break;
+                case "version":
+                    version = nextString(reader, skip);
+                    break;
+                case "maintainer":
+                    info.maintainer = nextString(reader, false);
+                    break;
+                case "buildtype":
+                    info.buildType = nextString(reader, false);
+                    break;
+                case "forum":
+                    info.forum = nextString(reader, false);
+                    break;
+                case "telegram":
+                    info.telegram = nextString(reader, false);
+                    break;
+                case "gapps":
+                    info.gapps = nextString(reader, false);
+                    break;
+                case "firmware":
+                    info.firmware = nextString(reader, false);
+                    break;
+                case "modem":
+                    info.modem = nextString(reader, false);
+                    break;
+                case "bootloader":
+                    info.bootloader = nextString(reader, false);
+                    break;
+                case "recovery":
+                    info.recovery = nextString(reader, false);
+                    break;
+                case "paypal":
+                    info.paypal = nextString(reader, false);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (skip) {
+            Log.d(TAG, "Ignoring incompatible update with timestamp " + timestamp);
+            return null;
+        }
+        if (timestamp == null || size == null || name == null || downloadId == null ||
+                downloadUrl == null || version == null) {
+            throw new JSONException("Missing or invalid update fields");
+        }
+        if (!info.isComplete()) {
+            // Required like the fields of the update itself
+            throw new JSONException("Missing or invalid maintainer fields");
+        }
+
         Update update = new Update();
-        update.setTimestamp(object.getLong("timestamp"));
-        update.setName(object.getString("filename"));
-        update.setDownloadId(object.getString("md5"));
-        update.setFileSize(object.getLong("size"));
-        update.setDownloadUrl(object.getString("download"));
-        update.setVersion(object.getString("version"));
-        mMaintainer = object.getString("maintainer");
-        mBuildType = object.getString("buildtype");
-        mForum = object.getString("forum");
-        mTelegram = object.getString("telegram");
-        mGapps = object.getString("gapps");
-        mFirmware = object.getString("firmware");
-        mModem = object.getString("modem");
-        mBootloader = object.getString("bootloader");
-        mRecovery = object.getString("recovery");
-        mPaypal = object.getString("paypal");
+        update.setTimestamp(timestamp);
+        update.setName(name);
+        update.setDownloadId(downloadId);
+        update.setFileSize(size);
+        update.setDownloadUrl(downloadUrl);
+        update.setVersion(version);
         return update;
     }
 
+    private static String nextString(JsonReader reader, boolean skip) throws IOException {
+        JsonToken token = reader.peek();
+        if (skip || (token != JsonToken.STRING && token != JsonToken.NUMBER)) {
+            reader.skipValue();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static Long nextLong(JsonReader reader) throws IOException {
+        String value = nextString(reader, false);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(value);
+            } catch (NumberFormatException ignored) {
+                return null;
+            }
+        }
+    }
+
+    public static boolean isCompatible(long timestamp) {
+        return SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false) ||
+                timestamp > SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
+    }
+
     public static boolean isCompatible(UpdateBaseInfo update) {
-        if (!SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false) &&
-                update.getTimestamp() <= SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) {
+        if (!isCompatible(update.getTimestamp())) {
             Log.d(TAG, update.getName() + " is older than/equal to the current build");
             return false;
         }
-            return true;
+        return true;
     }
 
     public static boolean canInstall(UpdateBaseInfo update) {
@@ -129,33 +249,81 @@ public class Utils {
                 update.getTimestamp() > SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0));
     }
 
+    /**
+     * Open the given updates list, which is stored compressed if the server sent it so
+     */
+    private static InputStream openUpdateList(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            in.mark(2);
+            int magic = in.read() | (in.read() << 8);
+            in.reset();
+            return magic == GZIPInputStream.GZIP_MAGIC ? new GZIPInputStream(in) : in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
     public static List<UpdateInfo> parseJson(File file, boolean compatibleOnly)
             throws IOException, JSONException {
         List<UpdateInfo> updates = new ArrayList<>();
-
-        StringBuilder json = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            for (String line; (line = br.readLine()) != null;) {
-                json.append(line);
+        MaintainerInfo maintainerInfo = null;
+        boolean hasResponse = false;
+
+        try (JsonReader reader = new JsonReader(new InputStreamReader(openUpdateList(file),
+                StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"response".equals(reader.nextName()) ||
+                        reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+                hasResponse = true;
+                reader.beginArray();
+                for (int i = 0; reader.hasNext(); i++) {
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    MaintainerInfo info = new MaintainerInfo();
+                    try {
+                        UpdateInfo update = parseJsonUpdate(reader, compatibleOnly, info);
+                        if (update != null) {
+                            updates.add(update);
+                        }
+                    } catch (JSONException e) {
+                        Log.e(TAG, "Could not parse update object, index=" + i, e);
+                    }
+                    if (info.isComplete()) {
+                        maintainerInfo = info;
+                    }
+                }
+                reader.endArray();
             }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // Thrown by JsonReader when the document doesn't have the expected structure
+            throw new JSONException(e.getMessage());
         }
 
-        JSONObject obj = new JSONObject(json.toString());
-        JSONArray updatesList = obj.getJSONArray("response");
-        for (int i = 0; i < updatesList.length(); i++) {
-            if (updatesList.isNull(i)) {
-                continue;
-            }
-            try {
-                UpdateInfo update = parseJsonUpdate(updatesList.getJSONObject(i));
-                if (!compatibleOnly || isCompatible(update)) {
-                    updates.add(update);
-                } else {
-                    Log.d(TAG, "Ignoring incompatible update " + update.getName());
-                }
-            } catch (JSONException e) {
-                Log.e(TAG, "Could not parse update object, index=" + i, e);
-            }
+        if (!hasResponse) {
+            throw new JSONException("No value for response");
+        }
+
+        // The maintainer details are the same for all the builds of a device
+        if (maintainerInfo != null) {
+            mMaintainer = maintainerInfo.maintainer;
+            mBuildType = maintainerInfo.buildType;
+            mForum = maintainerInfo.forum;
+            mTelegram = maintainerInfo.telegram;
+            mGapps = maintainerInfo.gapps;
+            mFirmware = maintainerInfo.firmware;
+            mModem = maintainerInfo.modem;
+            mBootloader = maintainerInfo.bootloader;
+            mRecovery = maintainerInfo.recovery;
+            mPaypal = maintainerInfo.paypal;
         }
 
         return updates;
@@ -210,61 +378,6 @@ public class Utils {
         return cm.isActiveNetworkMetered();
     }
 
-    /**
-     * Compares two json formatted updates list files
-     *
-     * @param oldJson old update list
-     * @param newJson new update list
-     * @return true if newJson has at least a compatible update not available in oldJson
-     */
-    public static boolean checkForNewUpdates(File oldJson, File newJson)
-            throws IOException, JSONException {
-        List<UpdateInfo> oldList = parseJson(oldJson, true);
-        List<UpdateInfo> newList = parseJson(newJson, true);
-        Set<String> oldIds = new HashSet<>();
-        for (UpdateInfo update : oldList) {
-            oldIds.add(update.getDownloadId());
-        }
-        // In case of no new updates, the old list should
-        // have all (if not more) the updates
-        for (UpdateInfo update : newList) {
-            if (!oldIds.contains(update.getDownloadId())) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    /**
-     * Get the offset to the compressed data of a file inside the given zip
-     *
-     * @param zipFile input zip file
-     * @param entryPath full path of the entry
-     * @return the offset of the compressed, or -1 if not found
-     * @throws IllegalArgumentException if the given entry is not found
-     */
-    public static long getZipEntryOffset(ZipFile zipFile, String entryPath) {
-        // Each entry has an header of (30 + n + m) bytes
-        // 'n' is the length of the file name
-        // 'm' is the length of the extra field
-        final int FIXED_HEADER_SIZE = 30;
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-        long offset = 0;
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry entry = zipEntries.nextElement();
-            int n = entry.getName().length();
-            int m = entry.getExtra() == null ? 0 : entry.getExtra().length;
-            int headerSize = FIXED_HEADER_SIZE + n + m;
-            offset += headerSize;
-            if (entry.getName().equals(entryPath)) {
-                return offset;
-            }
-            offset += entry.getCompressedSize();
-        }
-        Log.e(TAG, "Entry " + entryPath + " not found");
-        throw new IllegalArgumentException("The given entry was not found");
-    }
-
     public static void removeUncryptFiles(File downloadPath) {
         File[] uncryptFiles = downloadPath.listFiles(
                 (dir, name) -> name.endsWith(Constants.UNCRYPT_FILE_EXT));
@@ -324,6 +437,7 @@ public class Utils {
         List<String> knownPaths = new ArrayList<>();
         for (UpdateInfo update : dbHelper.getUpdates()) {
             knownPaths.add(update.getFile().getAbsolutePath());
+            knownPaths.add(DownloadJournal.getFile(update.getFile()).getAbsolutePath());
         }
         for (File file : files) {
             if (!knownPaths.contains(file.getAbsolutePath())) {
@@ -361,16 +475,10 @@ public class Utils {
         return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
     }
 
-    public static boolean isABUpdate(ZipFile zipFile) {
-        return zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
-                zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
-    }
-
     public static boolean isABUpdate(File file) throws IOException {
-        ZipFile zipFile = new ZipFile(file);
-        boolean isAB = isABUpdate(zipFile);
-        zipFile.close();
-        return isAB;
+        ZipIndex zipIndex = ZipIndex.get(file);
+        return zipIndex.hasEntry(Constants.AB_PAYLOAD_BIN_PATH) &&
+                zipIndex.hasEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
     }
 
     public static boolean hasTouchscreen(Context context) {
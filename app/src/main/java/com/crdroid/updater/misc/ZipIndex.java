@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2026 crDroid Android Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.crdroid.updater.misc;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Index of the entries of a zip file built from its central directory. Unlike
+ * ZipFile, it gives the exact offset of the data of each entry, which is what
+ * update_engine needs to read the payload of A/B packages.
+ */
+public class ZipIndex {
+
+    private static final String TAG = "ZipIndex";
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    private static final int MAX_CACHED_INDEXES = 4;
+
+    private static final Map<String, ZipIndex> sCache =
+            new LinkedHashMap<String, ZipIndex>(MAX_CACHED_INDEXES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ZipIndex> eldest) {
+                    return size() > MAX_CACHED_INDEXES;
+                }
+            };
+
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+        private volatile long mDataOffset = -1;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private final File mFile;
+    private final long mLength;
+    private final long mLastModified;
+    private final Map<String, Entry> mEntries;
+
+    private ZipIndex(File file, long length, long lastModified, Map<String, Entry> entries) {
+        mFile = file;
+        mLength = length;
+        mLastModified = lastModified;
+        mEntries = entries;
+    }
+
+    /**
+     * Get the index of the given zip, reading it only if it isn't cached already
+     * or the file changed since it was read
+     */
+    public static ZipIndex get(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        synchronized (sCache) {
+            ZipIndex index = sCache.get(key);
+            if (index != null && index.mLength == file.length() &&
+                    index.mLastModified == file.lastModified()) {
+                return index;
+            }
+        }
+        ZipIndex index = read(file);
+        synchronized (sCache) {
+            sCache.put(key, index);
+        }
+        return index;
+    }
+
+    private static ZipIndex read(File file) throws IOException {
+        long lastModified = file.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < EOCD_SIZE) {
+                throw new IOException(file + " is too small to be a zip file");
+            }
+
+            int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+            ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, length - tailSize,
+                    tailSize).order(ByteOrder.LITTLE_ENDIAN);
+            int eocd = -1;
+            for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == EOCD_SIGNATURE) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                throw new IOException("No end of central directory record in " + file);
+            }
+
+            long entriesCount = tail.getShort(eocd + 10) & 0xffff;
+            long cdSize = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+            long cdOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+            if (entriesCount == 0xffff || cdSize == ZIP64_MAGIC || cdOffset == ZIP64_MAGIC) {
+                int locator = eocd - ZIP64_EOCD_LOCATOR_SIZE;
+                if (locator < 0 || tail.getInt(locator) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                    throw new IOException("No zip64 end of central directory locator");
+                }
+                long zip64EocdOffset = tail.getLong(locator + 8);
+                if (zip64EocdOffset < 0 || zip64EocdOffset + 56 > length) {
+                    throw new IOException("Invalid zip64 end of central directory offset");
+                }
+                ByteBuffer zip64Eocd = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, zip64Eocd, zip64EocdOffset);
+                if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new IOException("Invalid zip64 end of central directory record");
+                }
+                entriesCount = zip64Eocd.getLong(32);
+                cdSize = zip64Eocd.getLong(40);
+                cdOffset = zip64Eocd.getLong(48);
+            }
+            if (cdOffset < 0 || cdSize < 0 || cdOffset + cdSize > length ||
+                    cdSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid central directory in " + file);
+            }
+
+            ByteBuffer cd = channel.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            Map<String, Entry> entries = new HashMap<>();
+            int pos = 0;
+            for (long i = 0; i < entriesCount; i++) {
+                if (pos + CENTRAL_HEADER_SIZE > cdSize ||
+                        cd.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                    throw new IOException("Invalid central directory entry " + i);
+                }
+                int method = cd.getShort(pos + 10) & 0xffff;
+                long compressedSize = cd.getInt(pos + 20) & ZIP64_MAGIC;
+                long size = cd.getInt(pos + 24) & ZIP64_MAGIC;
+                int nameLength = cd.getShort(pos + 28) & 0xffff;
+                int extraLength = cd.getShort(pos + 30) & 0xffff;
+                int commentLength = cd.getShort(pos + 32) & 0xffff;
+                long localHeaderOffset = cd.getInt(pos + 42) & ZIP64_MAGIC;
+                long entryEnd = (long) pos + CENTRAL_HEADER_SIZE + nameLength + extraLength +
+                        commentLength;
+                if (entryEnd > cdSize) {
+                    throw new IOException("Central directory entry " + i + " is truncated");
+                }
+
+                byte[] name = new byte[nameLength];
+                cd.position(pos + CENTRAL_HEADER_SIZE);
+                cd.get(name);
+
+                // Values that don't fit 32 bits are stored in the zip64 extra field,
+                // in this order and only if the corresponding field is set to 0xffffffff
+                int extra = pos + CENTRAL_HEADER_SIZE + nameLength;
+                int extraEnd = extra + extraLength;
+                while (extra + 4 <= extraEnd) {
+                    int id = cd.getShort(extra) & 0xffff;
+                    int dataSize = cd.getShort(extra + 2) & 0xffff;
+                    if (id == ZIP64_EXTRA_ID) {
+                        int field = extra + 4;
+                        if (field + 8 * countZip64Fields(size, compressedSize,
+                                localHeaderOffset) > Math.min(extraEnd, field + dataSize)) {
+                            throw new IOException("Truncated zip64 extra field in entry " + i);
+                        }
+                        if (size == ZIP64_MAGIC) {
+                            size = cd.getLong(field);
+                            field += 8;
+                        }
+                        if (compressedSize == ZIP64_MAGIC) {
+                            compressedSize = cd.getLong(field);
+                            field += 8;
+                        }
+                        if (localHeaderOffset == ZIP64_MAGIC) {
+                            localHeaderOffset = cd.getLong(field);
+                        }
+                        break;
+                    }
+                    extra += 4 + dataSize;
+                }
+
+                if (size < 0 || compressedSize < 0 || localHeaderOffset < 0 ||
+                        localHeaderOffset >= length) {
+                    throw new IOException("Invalid sizes or offset in entry " + i);
+                }
+
+                String entryName = new String(name, StandardCharsets.UTF_8);
+                entries.put(entryName, new Entry(entryName, method, compressedSize, size,
+                        localHeaderOffset));
+                pos = (int) entryEnd;
+            }
+            Log.d(TAG, "Indexed " + entries.size() + " entries of " + file.getName());
+            return new ZipIndex(file, length, lastModified, entries);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException |
+                IllegalArgumentException e) {
+            // Anything the checks above missed
+            throw new IOException("Malformed zip file " + file, e);
+        }
+    }
+
+    private static int countZip64Fields(long size, long compressedSize,
+            long localHeaderOffset) {
+        int count = 0;
+        if (size == ZIP64_MAGIC) {
+            count++;
+        }
+        if (compressedSize == ZIP64_MAGIC) {
+            count++;
+        }
+        if (localHeaderOffset == ZIP64_MAGIC) {
+            count++;
+        }
+        return count;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    public boolean hasEntry(String name) {
+        return mEntries.containsKey(name);
+    }
+
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * Get the offset to the compressed data of a file inside the zip. The local file
+     * header is read, since its extra field can differ from the central directory one.
+     *
+     * @param name full path of the entry
+     * @return the offset of the compressed data
+     * @throws IllegalArgumentException if the given entry is not found
+     */
+    public long getDataOffset(String name) throws IOException {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            Log.e(TAG, "Entry " + name + " not found");
+            throw new IllegalArgumentException("The given entry was not found");
+        }
+        if (entry.mDataOffset < 0) {
+            try (RandomAccessFile raf = new RandomAccessFile(mFile, "r")) {
+                entry.mDataOffset = readDataOffset(raf.getChannel(), entry);
+            }
+        }
+        return entry.mDataOffset;
+    }
+
+    private static long readDataOffset(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, entry.mLocalHeaderOffset);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header for " + entry.mName);
+        }
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Open the uncompressed content of a file inside the zip
+     *
+     * @param name full path of the entry
+     * @throws IllegalArgumentException if the given entry is not found
+     */
+    public InputStream getInputStream(String name) throws IOException {
+        long offset = getDataOffset(name);
+        Entry entry = mEntries.get(name);
+        InputStream stream = new EntryInputStream(mFile, offset, entry.mCompressedSize);
+        switch (entry.mMethod) {
+            case ZipEntry.STORED:
+                return stream;
+            case ZipEntry.DEFLATED:
+                return new InflaterInputStream(stream, new Inflater(true)) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            default:
+                stream.close();
+                throw new IOException("Unsupported compression method " + entry.mMethod);
+        }
+    }
+
+    private static class EntryInputStream extends InputStream {
+        private final RandomAccessFile mFile;
+        private final long mEnd;
+        private long mPosition;
+
+        private EntryInputStream(File file, long offset, long length) throws IOException {
+            mFile = new RandomAccessFile(file, "r");
+            mPosition = offset;
+            mEnd = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mPosition >= mEnd) {
+                return -1;
+            }
+            len = (int) Math.min(len, mEnd - mPosition);
+            int read = mFile.getChannel().read(ByteBuffer.wrap(b, off, len), mPosition);
+            if (read > 0) {
+                mPosition += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mEnd - mPosition);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+}
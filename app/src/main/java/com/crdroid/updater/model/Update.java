@@ -20,15 +20,17 @@ import java.io.File;
 public class Update extends UpdateBase implements UpdateInfo {
     public static final String LOCAL_ID = "local";
 
-    private UpdateStatus mStatus = UpdateStatus.UNKNOWN;
-    private int mPersistentStatus = UpdateStatus.Persistent.UNKNOWN;
-    private File mFile;
-    private int mProgress;
-    private long mEta;
-    private long mSpeed;
-    private int mInstallProgress;
-    private boolean mAvailableOnline;
-    private boolean mIsFinalizing;
+    // The state is updated by the download and verification threads and read by the UI
+
+    private volatile UpdateStatus mStatus = UpdateStatus.UNKNOWN;
+    private volatile int mPersistentStatus = UpdateStatus.Persistent.UNKNOWN;
+    private volatile File mFile;
+    private volatile int mProgress;
+    private volatile long mEta;
+    private volatile long mSpeed;
+    private volatile int mInstallProgress;
+    private volatile boolean mAvailableOnline;
+    private volatile boolean mIsFinalizing;
 
     public Update() {
     }